@@ -1,17 +1,46 @@
 package pkg;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongBiFunction;
+import java.util.zip.CRC32;
 
 /**
  * 
@@ -19,18 +48,76 @@ import java.util.TreeMap;
  * 
  *         Implementación de un árbol-B según Cormen et.Al. con ligeras
  *         modificaciones para parecerse a la especificaciín de java.map
+ * 
+ *         Implementa java.util.NavigableMap, por lo que puede sustituir a
+ *         java.util.TreeMap. Como en éste, una entrada con valor null está
+ *         en el mapa (containsKey, size y los recorridos la cuentan), y
+ *         putIfAbsent, computeIfAbsent, computeIfPresent y merge la tratan
+ *         como ausente, según java.util.Map. Los resúmenes no tienen en
+ *         cuenta los valores null; los hashes de Merkle sí, distinguiéndolos
+ *         de la clave ausente
  *
  * @param <K>
  *            tipo de las claves utilizadas para mapear los valores
  * @param <V>
  *            tipo de los valores mapeados
  */
-public class BTree<K extends Comparable<K>, V> {
+public class BTree<K extends Comparable<K>, V> extends AbstractMap<K, V>
+		implements NavigableMap<K, V>, MerkleReplica<K, V> {
 
 	private final int t;
 	private final ValueToKey valueToKey;
 	private Node raiz;
 	private int size;
+	// Modo buffer (escritura optimizada, ver enableWriteBuffer): capacidad
+	// máxima del buffer de mensajes de cada nodo interno, 0 si el modo está
+	// desactivado
+	private int capacidadBuffer;
+	// Número total de mensajes pendientes en los buffers del árbol
+	private int pendientes;
+	// Filtro de Bloom para descartar búsquedas de claves que no están, null
+	// si no se usa
+	private CountingBloomFilter filtro;
+	// Se incrementa con cada operación que puede cambiar la estructura del
+	// árbol, para que los recorridos en curso se recoloquen (ver Recorrido)
+	private int modificaciones;
+	// Dedo sobre la hoja más a la derecha para las inserciones al final (ver
+	// anadeAlFinal): camino desde la raíz, válido mientras versionDedo ==
+	// modificaciones
+	private Object[] espina = new Object[8];
+	private int alturaEspina;
+	private int versionDedo = -1;
+	// Si puede haber nodos con menos de t-1 claves en el borde derecho, tras
+	// divisiones al final (ver divideAlFinal y reparaBorde)
+	private boolean bordeIrregular;
+	// Posición de la compactación incremental (ver compact): nivel que se
+	// está compactando y clave desde la que seguir, null si desde el principio
+	private int nivelCompactacion;
+	private K cursorCompactacion;
+	// Monoide de los resúmenes por subárbol (ver enableAggregates), null si
+	// no se usan
+	private Monoid<V> monoide;
+	// Si se mantienen los hashes de Merkle por subárbol, y la codificación de
+	// las claves y los valores con la que se calculan (ver
+	// enableMerkleHashes)
+	private boolean merkle;
+	private Codec<K> codecClaves;
+	private Codec<V> codecValores;
+	// Modo caché (ver enableCache): lista circular de las entradas, de la
+	// menos a la más recientemente usada, cerrada por un centinela (null si
+	// el modo está desactivado), suma máxima de sus pesos (0 si no hay
+	// límite), peso de cada entrada (null si pesan 1), suma de los pesos y
+	// caducidad por defecto en milisegundos (0 si no caducan)
+	private EntradaCache centinela;
+	private long capacidadCache;
+	private ToLongBiFunction<? super K, ? super V> pesaje;
+	private long pesoTotal;
+	private long ttlCache;
+	// Siguiente entrada de la lista que revisa el barrido de caducadas (ver
+	// sweep), el centinela para empezar por la primera
+	private EntradaCache barrido;
+	// Reloj de las caducidades, en milisegundos
+	private LongSupplier reloj = System::currentTimeMillis;
 
 	// B-TREE CREATE
 	public BTree(int grado) {
@@ -85,8 +172,9 @@ public class BTree<K extends Comparable<K>, V> {
 
 		@Override
 		public V setValue(V value) {
+			V old = this.value;
 			this.value = value;
-			return value;
+			return old;
 		}
 
 		/**
@@ -100,12 +188,74 @@ public class BTree<K extends Comparable<K>, V> {
 			return comparator.compare(this.key, o);
 		}
 
+		/**
+		 * Igualdad y hash según java.util.Map.Entry
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry))
+				return false;
+			Entry<?, ?> e = (Entry<?, ?>) o;
+			return key.equals(e.getKey())
+					&& (value == null ? e.getValue() == null : value.equals(e
+							.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
 		public String toString() {
 			return key.toString();
 		}
 
 	}
 
+	/**
+	 * Entrada del modo caché: además de la clave y el valor, su posición en
+	 * la lista de uso, su peso y el instante en que caduca
+	 */
+	protected class EntradaCache extends MyEntry {
+
+		private EntradaCache anterior;
+		private EntradaCache siguiente;
+		private long peso;
+		private long expira;
+
+		public EntradaCache(K key, V value, long expira) {
+			super(key, value);
+			this.expira = expira;
+		}
+	}
+
+	/**
+	 * Mensaje pendiente del modo buffer: inserción (clave, valor) o borrado de
+	 * la clave. Se guardan ordenados por clave en el buffer de los nodos
+	 * internos
+	 */
+	protected class Mensaje implements Comparable<K> {
+
+		private final K key;
+		private final V value;
+		private final boolean borrado;
+
+		public Mensaje(K key, V value, boolean borrado) {
+			this.key = key;
+			this.value = value;
+			this.borrado = borrado;
+		}
+
+		@Override
+		public int compareTo(K o) {
+			return comparator.compare(this.key, o);
+		}
+
+		public String toString() {
+			return (borrado ? "-" : "+") + key.toString();
+		}
+	}
+
 	/**
 	 * Clase privada de los nodos del árbol. Cada nodo se compone de varias
 	 * entradas (de la clase MyEntry) y de una serie de hijos (de la clase Node)
@@ -118,6 +268,24 @@ public class BTree<K extends Comparable<K>, V> {
 
 		protected boolean leaf;
 
+		// Número de entradas en el subárbol de este nodo (incluido)
+		protected int subtreeSize;
+
+		// Resumen de los valores del subárbol según el monoide (ver
+		// enableAggregates) y hash de Merkle del subárbol (ver
+		// enableMerkleHashes), válidos si conResumen. Se invalidan donde
+		// cambia subtreeSize o un valor del subárbol, y se recalculan al
+		// consultarlos
+		protected V resumen;
+		protected long hash;
+		protected boolean conResumen;
+
+		// Mensajes pendientes (sólo en nodos internos, modo buffer),
+		// ordenados por clave. Son más recientes que cualquier entrada del
+		// subárbol
+		protected Object[] buffer;
+		protected int numOfMensajes;
+
 		protected Node() {
 			this.children = new Object[2 * t];
 			this.entry = new Object[2 * t - 1];
@@ -130,6 +298,7 @@ public class BTree<K extends Comparable<K>, V> {
 		protected Node(MyEntry entry) {
 			this();
 			this.entry[this.numOfKeys++] = entry;
+			this.subtreeSize++;
 		}
 
 		@SuppressWarnings("unchecked")
@@ -142,6 +311,11 @@ public class BTree<K extends Comparable<K>, V> {
 			return (BTree<K, V>.MyEntry) entry[pos];
 		}
 
+		@SuppressWarnings("unchecked")
+		protected Mensaje getMensaje(int pos) {
+			return (BTree<K, V>.Mensaje) buffer[pos];
+		}
+
 		@SuppressWarnings("unchecked")
 		@Override
 		public String toString() {
@@ -170,16 +344,16 @@ public class BTree<K extends Comparable<K>, V> {
 	 *            nodo sobre el que buscar
 	 * @param key
 	 *            elemento a buscar
-	 * @return el valor V asociado a la clave key en el caso de que esté
-	 *         contenida en el nodo node o en alguno de sus hijos, null si no
-	 *         existe entrada asociada a la clave key
+	 * @return la entrada con clave key en el caso de que esté contenida en el
+	 *         nodo node o en alguno de sus hijos, null si no existe entrada
+	 *         asociada a la clave key
 	 */
-	private V buscar(Node node, K key) {
+	private MyEntry buscar(Node node, K key) {
 		// Buscar elem en los elementos del nodo
 		int pos = Arrays.binarySearch(node.entry, 0, node.numOfKeys, key);
 		// Si está el elemento
 		if (pos >= 0)
-			return node.getEntry(pos).value;
+			return node.getEntry(pos);
 		// Si no es el elemento, buscar en el hijo adecuado (el hijo en posición
 		// pos: si pos = 0, y el anterior if no se cumplió, entonces el elem
 		// que estamos buscando es menor que el primer elemento en nodo, por
@@ -225,6 +399,27 @@ public class BTree<K extends Comparable<K>, V> {
 				z.children[j] = y.children[j + t];
 		z.numOfKeys = t - 1;
 		y.numOfKeys = t - 1;
+		z.subtreeSize = cuentaDe(z);
+		y.subtreeSize -= z.subtreeSize + 1;
+		y.conResumen = false;
+
+		// Repartir los mensajes pendientes de y (ninguno puede tener la clave
+		// que sube a x, ver divideConBuffer)
+		if (y.numOfMensajes > 0) {
+			int m = Arrays.binarySearch(y.buffer, 0, y.numOfMensajes,
+					y.getEntry(t - 1).key);
+			if (m >= 0)
+				throw new AssertionError(
+						"Mensaje pendiente para la clave que sube al padre");
+			m = -(m + 1);
+			z.buffer = new Object[y.buffer.length];
+			for (int j = m; j < y.numOfMensajes; j++) {
+				z.buffer[j - m] = y.buffer[j];
+				y.buffer[j] = null;
+			}
+			z.numOfMensajes = y.numOfMensajes - m;
+			y.numOfMensajes = m;
+		}
 
 		// Desplazar a la derecha las claves de x, hasta la pos i (ésta será
 		// desplazada)
@@ -251,32 +446,223 @@ public class BTree<K extends Comparable<K>, V> {
 	 * 
 	 * @param newEntry
 	 *            entrada a insertar
-	 * @return Entrada almacenada previamente (tendrá la misma clave que
-	 *         newEntry, pero el valor puede diferir), o null si no existía
-	 *         entrada con la clave de newEntry
+	 * @return Valor almacenado previamente con la clave de newEntry, o null
+	 *         si no existía entrada con esa clave
 	 */
-	private MyEntry insert(MyEntry newEntry) {
+	private V insert(MyEntry newEntry) {
 		// Si el árbol estaba vacío, poner una nueva raíz
 		if (raiz == null) {
 			raiz = new Node();
 			size = 0;
 		}
-		Node r = raiz;
-		if (r.numOfKeys == 2 * t - 1) {
-			// La raíz está llena, la dividimos, lo que se catapulte hacia
-			// arriba será la nueva raíz (el árbol crece en altura)
+		// En modo buffer el borde derecho se mantiene regular para poder
+		// vaciar los buffers (ver enableWriteBuffer)
+		if (capacidadBuffer == 0 && size > 0 && anadeAlFinal(newEntry))
+			return null;
+		raiz = creceSiLlena(raiz);
+		modificaciones++;
+		return insertNonFull(raiz, newEntry);
+	}
+
+	/**
+	 * Si la raíz r está llena, la divide, lo que se catapulte hacia arriba
+	 * será la nueva raíz (el árbol crece en altura)
+	 * 
+	 * @param r
+	 *            raíz del árbol (o de un fragmento de árbol)
+	 * @return la nueva raíz, que no está llena
+	 */
+	private Node creceSiLlena(Node r) {
+		if (r.numOfKeys < 2 * t - 1)
+			return r;
+		Node s = new Node();
+		s.leaf = false;
+		s.numOfKeys = 0;
+		s.children[0] = r;
+		s.subtreeSize = r.subtreeSize;
+		split(s, 0);
+		return s;
+	}
+
+	/**
+	 * Inserción de una clave mayor que todas las del árbol (claves crecientes:
+	 * marcas de tiempo, secuencias...). Si la hoja más a la derecha del último
+	 * añadido (el dedo) sigue siendo válida y tiene sitio, se inserta en ella
+	 * directamente, sin bajar desde la raíz ni comparar más que con la clave
+	 * máxima. Si no, se baja por el borde derecho: una hoja llena no se
+	 * divide, la nueva entrada sube al padre y a su derecha se abre una hoja
+	 * vacía, como en la construcción de abajo a arriba (ver CargaOrdenada);
+	 * los nodos internos llenos se dividen con divideAlFinal. El camino se
+	 * guarda como nuevo dedo.
+	 * 
+	 * Las inserciones en orden creciente son así O(1) amortizado, dejan las
+	 * hojas completamente llenas y los nodos internos con 2t-2 claves
+	 * 
+	 * @return false si newEntry no va al final del árbol, en cuyo caso no se
+	 *         ha modificado nada
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean anadeAlFinal(MyEntry newEntry) {
+		if (versionDedo == modificaciones) {
+			if (newEntry.compareTo(maximaDelDedo().key) <= 0)
+				return false;
+			Node hoja = (BTree<K, V>.Node) espina[alturaEspina - 1];
+			if (hoja.numOfKeys < 2 * t - 1) {
+				insertaEnHoja(hoja, hoja.numOfKeys, newEntry);
+				for (int i = 0; i < alturaEspina - 1; i++) {
+					Node y = (BTree<K, V>.Node) espina[i];
+					y.subtreeSize++;
+					y.conResumen = false;
+				}
+				versionDedo = ++modificaciones;
+				return true;
+			}
+		} else {
+			// Descartar primero con la última clave de la raíz, para no bajar
+			// por el borde en las inserciones que no son al final
+			if (raiz.numOfKeys > 0
+					&& newEntry.compareTo(raiz.getEntry(raiz.numOfKeys - 1).key) <= 0
+					|| newEntry.compareTo(lastKey(raiz).key) <= 0)
+				return false;
+		}
+		modificaciones++;
+		if (raiz.numOfKeys == 2 * t - 1) {
+			// Nueva raíz; si la antigua es una hoja, la entrada subirá a la
+			// nueva raíz al bajar
 			Node s = new Node();
-			raiz = s;
 			s.leaf = false;
-			s.numOfKeys = 0;
-			s.children[0] = r;
-			split(s, 0);
-			return insertNonFull(s, newEntry);
-		} else {
-			return insertNonFull(r, newEntry);
+			s.children[0] = raiz;
+			s.subtreeSize = raiz.subtreeSize;
+			if (!raiz.leaf)
+				divideAlFinal(s);
+			raiz = s;
+		}
+		alturaEspina = 0;
+		Node x = raiz;
+		while (true) {
+			apilaEspina(x);
+			if (x.leaf) {
+				insertaEnHoja(x, x.numOfKeys, newEntry);
+				break;
+			}
+			Node y = x.getHijo(x.numOfKeys);
+			if (y.numOfKeys == 2 * t - 1) {
+				if (y.leaf) {
+					// La hoja llena se queda como está, la entrada separa
+					// la hoja de una nueva vacía, que pasa a ser el dedo
+					// (x no está lleno, se inserta como en una hoja)
+					insertaEnHoja(x, x.numOfKeys, newEntry);
+					x.children[x.numOfKeys] = new Node();
+					apilaEspina(x.getHijo(x.numOfKeys));
+					bordeIrregular = true;
+					break;
+				}
+				divideAlFinal(x);
+			}
+			x.subtreeSize++;
+			x.conResumen = false;
+			x = x.getHijo(x.numOfKeys);
+		}
+		versionDedo = modificaciones;
+		return true;
+	}
+
+	private void apilaEspina(Node x) {
+		if (alturaEspina == espina.length)
+			espina = Arrays.copyOf(espina, 2 * alturaEspina);
+		espina[alturaEspina++] = x;
+	}
+
+	/**
+	 * 
+	 * @return la entrada con la clave máxima del árbol, a partir del dedo: la
+	 *         última de la hoja o, si la hoja está vacía, la última de su padre
+	 */
+	@SuppressWarnings("unchecked")
+	private MyEntry maximaDelDedo() {
+		Node hoja = (BTree<K, V>.Node) espina[alturaEspina - 1];
+		if (hoja.numOfKeys > 0)
+			return hoja.getEntry(hoja.numOfKeys - 1);
+		Node padre = (BTree<K, V>.Node) espina[alturaEspina - 2];
+		return padre.getEntry(padre.numOfKeys - 1);
+	}
+
+	/**
+	 * Divide el último hijo de x, un nodo interno lleno, para insertar al
+	 * final: sube a x su última clave, el hijo se queda con las 2t-2 restantes
+	 * y su último hijo pasa a un nuevo nodo sin claves a la derecha, donde
+	 * irán las siguientes. Ese nuevo nodo tiene menos de t-1 claves hasta que
+	 * se llena, lo que sólo puede ocurrir en el borde derecho del árbol (ver
+	 * reparaBorde)
+	 * 
+	 * @param x
+	 *            nodo del que se divide el último hijo, no puede estar lleno
+	 */
+	private void divideAlFinal(Node x) {
+		int i = x.numOfKeys;
+		Node y = x.getHijo(i);
+		Node z = new Node();
+		z.leaf = false;
+		z.children[0] = y.children[2 * t - 1];
+		y.children[2 * t - 1] = null;
+		z.subtreeSize = z.getHijo(0).subtreeSize;
+		x.entry[i] = y.entry[2 * t - 2];
+		y.entry[2 * t - 2] = null;
+		y.numOfKeys = 2 * t - 2;
+		y.subtreeSize -= z.subtreeSize + 1;
+		y.conResumen = false;
+		x.children[i + 1] = z;
+		x.numOfKeys++;
+		bordeIrregular = true;
+		// DiskWrite
+	}
+
+	/**
+	 * Restablece el invariante (al menos t-1 claves por nodo) en el borde
+	 * derecho que han dejado las divisiones al final. Fuera del borde todos
+	 * los nodos lo cumplen, así que basta con bajar por él fusionando o
+	 * repartiendo cada último hijo con su hermano izquierdo, dejándolo con al
+	 * menos t claves para poder hacer lo mismo en el nivel siguiente.
+	 * 
+	 * Se llama antes de las operaciones que necesitan el invariante (borrados,
+	 * splitAt, join y el modo buffer)
+	 */
+	private void reparaBorde() {
+		if (!bordeIrregular)
+			return;
+		bordeIrregular = false;
+		modificaciones++;
+		Node x = raiz;
+		while (!x.leaf) {
+			Node y = x.getHijo(x.numOfKeys);
+			if (y.numOfKeys < t) {
+				Node z = x.getHijo(x.numOfKeys - 1);
+				if (z.numOfKeys + 1 + y.numOfKeys <= 2 * t - 1) {
+					fusiona(x, x.numOfKeys - 1, z, y);
+					y = z;
+					if (x == raiz && x.numOfKeys == 0)
+						// El árbol decrece en altura
+						raiz = z;
+				} else
+					reparte(x, x.numOfKeys - 1);
+			}
+			x = y;
 		}
 	}
 
+	/**
+	 * 
+	 * @return número de entradas del subárbol de x, a partir de las de sus
+	 *         hijos
+	 */
+	private int cuentaDe(Node x) {
+		int r = x.numOfKeys;
+		if (!x.leaf)
+			for (int i = 0; i <= x.numOfKeys; i++)
+				r += x.getHijo(i).subtreeSize;
+		return r;
+	}
+
 	/**
 	 * Inserta en el nodo x (o en sus hijos), el cual no esá lleno, la entrada
 	 * newEntry
@@ -285,12 +671,13 @@ public class BTree<K extends Comparable<K>, V> {
 	 *            nodo sobre el que se va a insertar
 	 * @param newEntry
 	 *            entrada a insertar
-	 * @return Entrada almacenada previamente (tendrá la misma clave que
-	 *         newEntry, pero el valor puede diferir), o null si no existía
-	 *         entrada con la clave de newEntry
+	 * @return Valor almacenado previamente con la clave de newEntry, o null
+	 *         si no existía entrada con esa clave
 	 */
-	private MyEntry insertNonFull(Node x, MyEntry newEntry) {
-		MyEntry r = null; // Valor a devolver
+	private V insertNonFull(Node x, MyEntry newEntry) {
+		V r = null; // Valor a devolver
+		// Cambia el subárbol de x, con una entrada nueva o un valor nuevo
+		x.conResumen = false;
 		// Modificación Cormen: control de repeticiones:
 		// en el Cormen no se controla la inserción de claves repetidas en el
 		// árbol. Según la definición de árbolB, no puede haber claves
@@ -302,24 +689,17 @@ public class BTree<K extends Comparable<K>, V> {
 		// procedimiento que en buscar
 		int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, newEntry.key);
 		if (pos >= 0) {
-			// La clave de insercion ya existía, devolvemos la entrada
-			// para poder conocer el valor anterior (según se especifica en
-			// java.util.Map), y actualizamos su valor
-			r = x.getEntry(pos);
+			// La clave de insercion ya existía, devolvemos el valor
+			// anterior (según se especifica en java.util.Map), y
+			// actualizamos su valor
 			// Sólo haría falta actualizar el elem, no la clave
-			r.setValue(newEntry.getValue());
+			r = sobrescribe(x.getEntry(pos), newEntry);
 			// Disk write
 		} else { // Si no está
 			if (x.leaf) {
 				pos = -(pos + 1);
 				// Nodo hoja, elem se debe insertar aquí en la posición pos
-				// Desplazar nodos a la derecha (incluyendo pos)
-				for (int j = x.numOfKeys - 1; j >= pos; j--)
-					x.entry[j + 1] = x.entry[j];
-				// Insertar la entrada
-				x.entry[pos] = newEntry;
-				x.numOfKeys++;
-				this.size++;
+				insertaEnHoja(x, pos, newEntry);
 				r = null; // La clave no existía
 				// Disk write
 			} else {
@@ -333,15 +713,59 @@ public class BTree<K extends Comparable<K>, V> {
 				// recalculamos la posición donde insertar
 				if (x.getHijo(pos).numOfKeys == 2 * t - 1) {
 					split(x, pos);
-					if (newEntry.compareTo(x.getEntry(pos).key) > 0)
+					int cmp = newEntry.compareTo(x.getEntry(pos).key);
+					if (cmp == 0)
+						// La clave que ha subido es la que se inserta
+						return sobrescribe(x.getEntry(pos), newEntry);
+					if (cmp > 0)
 						pos++;
 				}
+				int sizeAnterior = size;
 				r = insertNonFull(x.getHijo(pos), newEntry);
+				if (size > sizeAnterior)
+					x.subtreeSize++;
 			}
 		}
 		return r;
 	}
 
+	/**
+	 * Inserta la entrada e en la posición pos de la hoja x, que no está llena
+	 */
+	private void insertaEnHoja(Node x, int pos, MyEntry e) {
+		// Desplazar nodos a la derecha (incluyendo pos)
+		for (int j = x.numOfKeys - 1; j >= pos; j--)
+			x.entry[j + 1] = x.entry[j];
+		// Insertar la entrada
+		x.entry[pos] = e;
+		x.numOfKeys++;
+		x.subtreeSize++;
+		x.conResumen = false;
+		this.size++;
+		if (filtro != null)
+			filtro.add(e.key);
+		if (centinela != null)
+			enlaza((EntradaCache) e);
+		// Disk write
+	}
+
+	/**
+	 * Borra la entrada en la posición pos de la hoja x. No actualiza
+	 * x.subtreeSize, de eso se encarga quien llama (ver remove)
+	 */
+	private void borraDeHoja(Node x, int pos) {
+		if (filtro != null)
+			filtro.remove(x.getEntry(pos).key);
+		if (centinela != null)
+			desenlaza((EntradaCache) x.getEntry(pos));
+		for (int i = pos; i < x.numOfKeys - 1; i++) {
+			x.entry[i] = x.entry[i + 1];
+		}
+		x.entry[--x.numOfKeys] = null;
+		x.conResumen = false;
+		size--;
+	}
+
 	/**
 	 * Método que elimina del nodo x la entrada con clave key
 	 * 
@@ -357,16 +781,13 @@ public class BTree<K extends Comparable<K>, V> {
 	private V remove(Node x, K key) {
 		int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
 		V oldValue = null;
+		int sizeAnterior = size;
 		if (x.leaf) {
 			if (pos >= 0) {
 				// Si está en esta hoja
 				oldValue = x.getEntry(pos).getValue();
 				// Borrarlo
-				for (int i = pos; i < x.numOfKeys - 1; i++) {
-					x.entry[i] = x.entry[i + 1];
-				}
-				x.numOfKeys--;
-				size--;
+				borraDeHoja(x, pos);
 			} // Else no esta -> return null
 		} else {
 			if (pos >= 0) {
@@ -383,6 +804,10 @@ public class BTree<K extends Comparable<K>, V> {
 			}
 		}
 		// if oldValue != null Disk write
+		if (size < sizeAnterior) {
+			x.subtreeSize--;
+			x.conResumen = false;
+		}
 		if (x == raiz && x.numOfKeys == 0) {
 			raiz = x.getHijo(0);
 			// Disk write
@@ -405,12 +830,27 @@ public class BTree<K extends Comparable<K>, V> {
 	 * @return Valor que se elimina, null si no existía entrada con clave key
 	 */
 	private V removeNoExisting(Node x, int pos, K key) {
-		V oldValue;
+		return remove(preparaHijo(x, pos), key);
+	}
+
+	/**
+	 * Prepara el hijo en posición pos del nodo x para bajar por él quitando
+	 * una entrada: si tiene t-1 entradas, se le pasa una de un hermano
+	 * adyacente o se fusiona con él
+	 * 
+	 * @param x
+	 *            nodo por el que se baja
+	 * @param pos
+	 *            posición, en el array de hijos, por la que se baja
+	 * @return nodo por el que seguir bajando, que tiene al menos t entradas
+	 *         (salvo que x sea la raíz y se haya quedado vacía)
+	 */
+	private Node preparaHijo(Node x, int pos) {
 		Node y = x.getHijo(pos);
 		if (y.numOfKeys > t - 1) {
 			// Podemos quitar un hijo a y (no ahora, pero la llamada
 			// recursiva puede hacerlo) sin romper el invariante
-			oldValue = remove(y, key);
+			return y;
 		} else {
 			// No podemos seguir hacia abajo, ya que si quitáramos algo
 			// al nodo y romperíamos el invariante.
@@ -425,29 +865,7 @@ public class BTree<K extends Comparable<K>, V> {
 			if (max > t - 1) {
 				if (maxIsLeft) {
 					Node z = x.getHijo(pos - 1);
-					// Bajo al nodo y la entrada de x en pos-1
-					// Necesariamente x[pos-1] es menor que cualquier
-					// entrada en y
-					// La sitúo a la izquierda de y
-					for (int i = y.numOfKeys - 1; i >= 0; i--) {
-						y.entry[i + 1] = y.entry[i];
-					}
-					y.entry[0] = x.getEntry(pos - 1);
-					// Subo a x la entrada más a la derecha del nodo z
-					x.entry[pos - 1] = z.entry[z.numOfKeys - 1];
-					// Si z no es hoja (y por tanto y tampoco) pongo el
-					// hijo de z que acabo de subir a x colgando del
-					// hijo que he bajado a y
-					// Nótese que este hijo estaba a la izquierda de la
-					// entrada x[pos-1], y ahora lo sigue estando
-					if (!z.leaf) {
-						for (int i = y.numOfKeys; i >= 0; i--) {
-							y.children[i + 1] = y.children[i];
-						}
-						y.children[0] = z.children[z.numOfKeys];
-					}
-					z.numOfKeys--;
-					y.numOfKeys++;
+					pasaDeIzquierda(x, pos);
 					// No he tocado el número de elementos de x
 					//
 					// Ahora y (el nodo que tiene k) tiene al menos t
@@ -463,33 +881,11 @@ public class BTree<K extends Comparable<K>, V> {
 
 					// Sigo borrando por el nodo y (que es donde debería
 					// estar k), que ya tiene al menos t elementos
-					oldValue = remove(y, key);
+					return y;
 
 				} else { // MaxIsRight
 					Node z = x.getHijo(pos + 1);
-					// Bajo al nodo y la entrada de x en pos
-					// Necesariamente x[pos] es mayor que cualquier
-					// entrada en y
-					// La sitúo a la derecha de y
-					y.entry[y.numOfKeys] = x.getEntry(pos);
-					// Subo a x la entrada más a la izquierda del nodo z
-					x.entry[pos] = z.entry[0];
-					for (int i = 0; i < z.numOfKeys - 1; i++) {
-						z.entry[i] = z.entry[i + 1];
-					}
-					// Si z no es hoja (y por tanto y tampoco) pongo el
-					// hijo de z que acabo de subir a x colgando del
-					// hijo que he bajado a y
-					// Nótese que este hijo estaba a la derecha de la
-					// entrada x[pos], y ahora lo sigue estando
-					if (!z.leaf) {
-						y.children[y.numOfKeys + 1] = z.children[0];
-						for (int i = 0; i < z.numOfKeys; i++) {
-							z.children[i] = z.children[i + 1];
-						}
-					}
-					z.numOfKeys--;
-					y.numOfKeys++;
+					pasaDeDerecha(x, pos);
 					// No he tocado el número de elementos de x
 					//
 					// Ahora y (el nodo que tiene k) tiene al menos t
@@ -505,7 +901,7 @@ public class BTree<K extends Comparable<K>, V> {
 
 					// Sigo borrando por el nodo y (que es donde debería
 					// estar k), que ya tiene al menos t elementos
-					oldValue = remove(y, key);
+					return y;
 				}
 			} else {
 				// Los dos hermanos tienen t-1 keys y por tanto no
@@ -516,14 +912,89 @@ public class BTree<K extends Comparable<K>, V> {
 				// que está inmediatamente a la derecha
 				if (pos > 0) {
 					merge(x, pos - 1, x.getHijo(pos - 1), y);
-					oldValue = remove(x.getHijo(pos - 1), key);
+					return x.getHijo(pos - 1);
 				} else {
 					merge(x, pos, y, x.getHijo(pos + 1));
-					oldValue = remove(y, key);
+					return y;
 				}
 			}
 		}
-		return oldValue;
+	}
+
+	/**
+	 * Rotación: pasa al hijo en posición pos de x una entrada de su hermano
+	 * izquierdo, a través de la entrada de x que los separa
+	 */
+	private void pasaDeIzquierda(Node x, int pos) {
+		Node y = x.getHijo(pos);
+		Node z = x.getHijo(pos - 1);
+		// Bajo al nodo y la entrada de x en pos-1
+		// Necesariamente x[pos-1] es menor que cualquier
+		// entrada en y
+		// La sitúo a la izquierda de y
+		for (int i = y.numOfKeys - 1; i >= 0; i--) {
+			y.entry[i + 1] = y.entry[i];
+		}
+		y.entry[0] = x.getEntry(pos - 1);
+		// Subo a x la entrada más a la derecha del nodo z
+		x.entry[pos - 1] = z.entry[z.numOfKeys - 1];
+		// Si z no es hoja (y por tanto y tampoco) pongo el
+		// hijo de z que acabo de subir a x colgando del
+		// hijo que he bajado a y
+		// Nótese que este hijo estaba a la izquierda de la
+		// entrada x[pos-1], y ahora lo sigue estando
+		int movidas = 1;
+		if (!z.leaf) {
+			for (int i = y.numOfKeys; i >= 0; i--) {
+				y.children[i + 1] = y.children[i];
+			}
+			y.children[0] = z.children[z.numOfKeys];
+			movidas += y.getHijo(0).subtreeSize;
+		}
+		z.numOfKeys--;
+		y.numOfKeys++;
+		z.subtreeSize -= movidas;
+		y.subtreeSize += movidas;
+		z.conResumen = false;
+		y.conResumen = false;
+	}
+
+	/**
+	 * Rotación: pasa al hijo en posición pos de x una entrada de su hermano
+	 * derecho, a través de la entrada de x que los separa
+	 */
+	private void pasaDeDerecha(Node x, int pos) {
+		Node y = x.getHijo(pos);
+		Node z = x.getHijo(pos + 1);
+		// Bajo al nodo y la entrada de x en pos
+		// Necesariamente x[pos] es mayor que cualquier
+		// entrada en y
+		// La sitúo a la derecha de y
+		y.entry[y.numOfKeys] = x.getEntry(pos);
+		// Subo a x la entrada más a la izquierda del nodo z
+		x.entry[pos] = z.entry[0];
+		for (int i = 0; i < z.numOfKeys - 1; i++) {
+			z.entry[i] = z.entry[i + 1];
+		}
+		// Si z no es hoja (y por tanto y tampoco) pongo el
+		// hijo de z que acabo de subir a x colgando del
+		// hijo que he bajado a y
+		// Nótese que este hijo estaba a la derecha de la
+		// entrada x[pos], y ahora lo sigue estando
+		int movidas = 1;
+		if (!z.leaf) {
+			y.children[y.numOfKeys + 1] = z.children[0];
+			movidas += z.getHijo(0).subtreeSize;
+			for (int i = 0; i < z.numOfKeys; i++) {
+				z.children[i] = z.children[i + 1];
+			}
+		}
+		z.numOfKeys--;
+		y.numOfKeys++;
+		z.subtreeSize -= movidas;
+		y.subtreeSize += movidas;
+		z.conResumen = false;
+		y.conResumen = false;
 	}
 
 	/**
@@ -547,6 +1018,8 @@ public class BTree<K extends Comparable<K>, V> {
 			MyEntry movingEntry = lastKey(y);
 			remove(y, movingEntry.getKey());
 			oldValue = x.getEntry(pos).getValue();
+			cambiaEnFiltro(x.getEntry(pos), movingEntry);
+			cambiaEnCache(x.getEntry(pos), movingEntry);
 			x.entry[pos] = movingEntry;
 		} else {
 			// Si a y le quitaramos una clave romeríamos el invariante
@@ -559,6 +1032,8 @@ public class BTree<K extends Comparable<K>, V> {
 				MyEntry movingEntry = firstKey(z);
 				remove(z, movingEntry.getKey());
 				oldValue = x.getEntry(pos).getValue();
+				cambiaEnFiltro(x.getEntry(pos), movingEntry);
+				cambiaEnCache(x.getEntry(pos), movingEntry);
 				x.entry[pos] = movingEntry;
 			} else {
 				if (y.numOfKeys != t - 1 || z.numOfKeys != t - 1)
@@ -583,6 +1058,31 @@ public class BTree<K extends Comparable<K>, V> {
 		return oldValue;
 	}
 
+	/**
+	 * En removeExisting la entrada que sube para sustituir a la borrada se ha
+	 * quitado del filtro al borrarla de su hoja: se vuelve a añadir y se
+	 * quita la que realmente desaparece
+	 */
+	private void cambiaEnFiltro(MyEntry borrada, MyEntry sube) {
+		if (filtro != null) {
+			filtro.add(sube.key);
+			filtro.remove(borrada.key);
+		}
+	}
+
+	/**
+	 * Como cambiaEnFiltro, para la lista del modo caché: la entrada que sube
+	 * se ha desenlazado al borrarla de su hoja sin que cambiara nada más en
+	 * la lista, así que se vuelve a enlazar en su sitio, y se desenlaza la
+	 * que realmente desaparece
+	 */
+	private void cambiaEnCache(MyEntry borrada, MyEntry sube) {
+		if (centinela != null) {
+			reenlaza((EntradaCache) sube);
+			desenlaza((EntradaCache) borrada);
+		}
+	}
+
 	/**
 	 * Fusion de nodos
 	 * 
@@ -599,6 +1099,17 @@ public class BTree<K extends Comparable<K>, V> {
 	 * @throws AssertionError
 	 */
 	private MyEntry merge(Node x, int pos, Node y, Node z) {
+		MyEntry deletingEntry = fusiona(x, pos, y, z);
+		if (x != raiz && x.numOfKeys < t - 1)
+			throw new AssertionError("x != raiz && x.numOfKeys < t-1");
+		return deletingEntry;
+	}
+
+	/**
+	 * Fusión de nodos, como merge pero sin comprobar el invariante en x. y y
+	 * z pueden tener cualquier número de claves, siempre que quepan en y
+	 */
+	private MyEntry fusiona(Node x, int pos, Node y, Node z) {
 		// Poner k en y
 		y.entry[y.numOfKeys++] = x.getEntry(pos);
 		MyEntry deletingEntry = x.getEntry(pos);
@@ -612,96 +1123,666 @@ public class BTree<K extends Comparable<K>, V> {
 				y.children[y.numOfKeys + i] = z.children[i];
 			}
 		}
-		y.numOfKeys = 2 * t - 1;
+		y.numOfKeys += z.numOfKeys;
+		y.subtreeSize += 1 + z.subtreeSize;
+		y.conResumen = false;
 		// Quitar k y z de x
 		for (int i = pos; i < x.numOfKeys - 1; i++) {
 			x.entry[i] = x.entry[i + 1];
 			x.children[i + 1] = x.children[i + 2];
 		}
 		x.numOfKeys--;
-		if (x != raiz && x.numOfKeys < t - 1)
-			throw new AssertionError("x != raiz && x.numOfKeys < t-1");
+		// Soltar z, que no se vuelve a usar
+		x.entry[x.numOfKeys] = null;
+		x.children[x.numOfKeys + 1] = null;
 		return deletingEntry;
 	}
 
-	public int size() {
-		return size;
+	/**
+	 * 
+	 * @return altura del subárbol de x (0 si x es hoja, -1 si es null)
+	 */
+	private int altura(Node x) {
+		if (x == null)
+			return -1;
+		int h = 0;
+		while (!x.leaf) {
+			x = x.getHijo(0);
+			h++;
+		}
+		return h;
 	}
 
-	public boolean isEmpty() {
-		return raiz == null || size == 0;
+	/**
+	 * Normaliza la raíz de un fragmento de árbol: una hoja sin claves es el
+	 * árbol vacío, y un nodo interno sin claves se sustituye por su único
+	 * hijo
+	 */
+	private Node normaliza(Node x) {
+		while (x != null && x.numOfKeys == 0)
+			x = x.leaf ? null : x.getHijo(0);
+		return x;
 	}
 
-	@SuppressWarnings("unchecked")
 	/**
-	 * Método para determinar si el árbol contiene mapeo para la clave key
+	 * Une los árboles de raíces l y r (que pueden estar vacíos, o tener
+	 * raíces con menos de t-1 claves) con la entrada sep, siendo todas las
+	 * claves de l menores que sep y todas las de r mayores.
 	 * 
-	 * Se realiza en O(logn)
+	 * Se hace en O(|hl - hr| + 1): se baja por el borde derecho de l (o el
+	 * izquierdo de r) hasta la altura del otro árbol, dividiendo los nodos
+	 * llenos como en insertNonFull, y se cuelga allí el otro árbol. Si su raíz
+	 * tiene menos de t-1 claves se fusiona o se reparte con su hermano. Las
+	 * alturas no se recalculan, las lleva quien llama (ver parte)
 	 * 
-	 * @param key
-	 * @return true si contiene una enrtada para la clave key
+	 * @param hl
+	 *            altura de l (ver altura), -1 si es null
+	 * @param hr
+	 *            altura de r, -1 si es null
+	 * @param alturas
+	 *            en la posición i se deja la altura del árbol resultante
+	 * @return raíz del árbol resultante
 	 */
-	public boolean containsKey(Object key) {
-		if (isEmpty() || key == null)
-			return false;
-		return buscar(raiz, (K) key) != null;
+	private Node une(Node l, int hl, MyEntry sep, Node r, int hr,
+			int[] alturas, int i) {
+		// Normalizar las raíces (ver normaliza) llevando la cuenta de la
+		// altura
+		for (; l != null && l.numOfKeys == 0; hl--)
+			l = l.leaf ? null : l.getHijo(0);
+		for (; r != null && r.numOfKeys == 0; hr--)
+			r = r.leaf ? null : r.getHijo(0);
+		if (l == null || r == null) {
+			// Basta con insertar sep como mínimo o máximo del otro árbol
+			Node y = l == null ? (r == null ? new Node() : r) : l;
+			int h = Math.max(Math.max(hl, hr), 0);
+			Node x = creceSiLlena(y);
+			insertNonFull(x, sep);
+			alturas[i] = x == y ? h : h + 1;
+			return x;
+		}
+		if (hl == hr) {
+			Node s = new Node();
+			s.leaf = false;
+			s.entry[0] = sep;
+			s.children[0] = l;
+			s.children[1] = r;
+			s.numOfKeys = 1;
+			s.subtreeSize = l.subtreeSize + 1 + r.subtreeSize;
+			if (l.numOfKeys + 1 + r.numOfKeys <= 2 * t - 1) {
+				fusiona(s, 0, l, r);
+				alturas[i] = hl;
+				return l;
+			}
+			if (l.numOfKeys < t - 1 || r.numOfKeys < t - 1)
+				reparte(s, 0);
+			alturas[i] = hl + 1;
+			return s;
+		}
+		if (hl > hr) {
+			Node c = creceSiLlena(l);
+			if (c != l)
+				hl++;
+			l = c;
+			Node x = l;
+			for (int h = hl; h > hr + 1; h--) {
+				x.subtreeSize += 1 + r.subtreeSize;
+				x.conResumen = false;
+				if (x.getHijo(x.numOfKeys).numOfKeys == 2 * t - 1)
+					split(x, x.numOfKeys);
+				x = x.getHijo(x.numOfKeys);
+			}
+			x.subtreeSize += 1 + r.subtreeSize;
+			x.conResumen = false;
+			x.entry[x.numOfKeys] = sep;
+			x.children[x.numOfKeys + 1] = r;
+			x.numOfKeys++;
+			if (r.numOfKeys < t - 1) {
+				Node y = x.getHijo(x.numOfKeys - 1);
+				if (y.numOfKeys + 1 + r.numOfKeys <= 2 * t - 1)
+					fusiona(x, x.numOfKeys - 1, y, r);
+				else
+					reparte(x, x.numOfKeys - 1);
+			}
+			alturas[i] = hl;
+			return l;
+		} else {
+			Node c = creceSiLlena(r);
+			if (c != r)
+				hr++;
+			r = c;
+			Node x = r;
+			for (int h = hr; h > hl + 1; h--) {
+				x.subtreeSize += 1 + l.subtreeSize;
+				x.conResumen = false;
+				if (x.getHijo(0).numOfKeys == 2 * t - 1)
+					split(x, 0);
+				x = x.getHijo(0);
+			}
+			x.subtreeSize += 1 + l.subtreeSize;
+			x.conResumen = false;
+			for (int j = x.numOfKeys - 1; j >= 0; j--)
+				x.entry[j + 1] = x.entry[j];
+			for (int j = x.numOfKeys; j >= 0; j--)
+				x.children[j + 1] = x.children[j];
+			x.entry[0] = sep;
+			x.children[0] = l;
+			x.numOfKeys++;
+			if (l.numOfKeys < t - 1) {
+				Node z = x.getHijo(1);
+				if (l.numOfKeys + 1 + z.numOfKeys <= 2 * t - 1)
+					fusiona(x, 0, l, z);
+				else
+					reparte(x, 0);
+			}
+			alturas[i] = hr;
+			return r;
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	/**
-	 * Función que busca si se contiene el valor value. 
-	 * Si se ha definido ValueToKey, se usa para buscar por clave en O(logn), si no, se realiza una búsqueda lineal
+	 * Saca de x las entradas a partir de la posición desde, con sus hijos, a
+	 * un nodo nuevo. El número de claves de x lo fija quien llama
 	 * 
-	 * @param value valor a buscar
-	 * @return true si se encuentra
+	 * @return nodo con las entradas [desde, x.numOfKeys) de x y los hijos
+	 *         [desde, x.numOfKeys]
 	 */
-	public boolean containsValue(Object value) {
-		if (isEmpty() || value == null)
-			return false;
-		if (valueToKey == null) {
-			return containsValue(raiz, (V) value);
-		} else
-			return containsKey(valueToKey.toKey((V) value));
-	}
-
-	private boolean containsValue(Node x, V value) {
-		for (int i = 0; i < x.numOfKeys; i++) {
-			if (value.equals(x.getEntry(i).value))
-				return true;
-			if (!x.leaf && containsValue(x.getHijo(i), value))
-				return true;
+	private Node corta(Node x, int desde) {
+		Node z = new Node();
+		z.leaf = x.leaf;
+		for (int j = desde; j < x.numOfKeys; j++) {
+			z.entry[j - desde] = x.entry[j];
+			x.entry[j] = null;
 		}
-
-		return (!x.leaf && containsValue(x.getHijo(x.numOfKeys), value));
+		if (!x.leaf)
+			for (int j = desde; j <= x.numOfKeys; j++) {
+				z.children[j - desde] = x.children[j];
+				x.children[j] = null;
+			}
+		z.numOfKeys = Math.max(x.numOfKeys - desde, 0);
+		z.subtreeSize = cuentaDe(z);
+		return z;
 	}
 
-	@SuppressWarnings("unchecked")
 	/**
-	 * Metodo que devuelve el valor asociado a la clave key
+	 * Separa el subárbol de x en dos: las entradas con clave menor que key y
+	 * las de clave mayor o igual. Se hace en O(log n) bajando por un único
+	 * camino: en cada nivel, lo que queda a cada lado del camino se une
+	 * (con une) con la mitad correspondiente del nivel inferior. Cada une
+	 * cuesta la diferencia de alturas más uno, que se compensan entre
+	 * niveles, por lo que las alturas se pasan en lugar de recalcularlas
 	 * 
-	 * Se realiza en O(logn)
-	 *
-	 * @param key
-	 * @return valor asociado a key, null si no existe mapeo para esta clave
+	 * @param h
+	 *            altura de x
+	 * @param alturas
+	 *            donde se dejan las alturas de los dos árboles resultantes
+	 * @return raíces (sin normalizar) de los dos árboles resultantes
 	 */
-	public V get(Object key) {
-		return isEmpty() ? null : buscar(raiz, (K) key);
+	private Object[] parte(Node x, int h, K key, int[] alturas) {
+		int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
+		if (pos >= 0) {
+			// key está en x: a la izquierda quedan las claves anteriores con
+			// sus hijos, a la derecha key y las posteriores
+			MyEntry igual = x.getEntry(pos);
+			Node derecha = corta(x, pos + 1);
+			x.entry[pos] = null;
+			x.numOfKeys = pos;
+			x.subtreeSize = cuentaDe(x);
+			x.conResumen = false;
+			alturas[0] = h;
+			return new Object[] { x,
+					une(null, -1, igual, derecha, h, alturas, 1) };
+		}
+		pos = -(pos + 1);
+		if (x.leaf) {
+			Node derecha = corta(x, pos);
+			x.numOfKeys = pos;
+			x.subtreeSize = cuentaDe(x);
+			x.conResumen = false;
+			alturas[0] = 0;
+			alturas[1] = 0;
+			return new Object[] { x, derecha };
+		}
+
+		// key debería estar en el hijo pos: se parte y cada mitad se une con
+		// lo que queda a su lado en x, con las claves de x que separaban el
+		// hijo pos de sus hermanos
+		Node y = x.getHijo(pos);
+		MyEntry sepDerecha = pos < x.numOfKeys ? x.getEntry(pos) : null;
+		MyEntry sepIzquierda = pos > 0 ? x.getEntry(pos - 1) : null;
+		Node derecha = sepDerecha == null ? null : corta(x, pos + 1);
+		for (int j = Math.max(pos - 1, 0); j <= pos && j < x.numOfKeys; j++)
+			x.entry[j] = null;
+		x.children[pos] = null;
+		x.numOfKeys = Math.max(pos - 1, 0);
+		x.subtreeSize = pos > 0 ? cuentaDe(x) : 0;
+		x.conResumen = false;
+
+		Object[] partes = parte(y, h - 1, key, alturas);
+		@SuppressWarnings("unchecked")
+		Node izquierda = (Node) partes[0];
+		@SuppressWarnings("unchecked")
+		Node dcha = (Node) partes[1];
+		if (sepIzquierda != null)
+			izquierda = une(x, h, sepIzquierda, izquierda, alturas[0], alturas,
+					0);
+		if (sepDerecha != null)
+			dcha = une(dcha, alturas[1], sepDerecha, derecha, h, alturas, 1);
+		return new Object[] { izquierda, dcha };
 	}
 
 	/**
-	 * Método que inserta el valor value con clave key
-	 * 
-	 * Se realiza en O(logn)
+	 * Añade el mensaje m al buffer del nodo interno x. Si ya había un mensaje
+	 * para la misma clave se sustituye (el nuevo es más reciente)
 	 * 
-	 * @param key
-	 * @param value
-	 * @return
+	 * @param x
+	 *            nodo interno que recibe el mensaje
+	 * @param m
+	 *            mensaje a añadir
 	 */
-	public V put(K key, V value) {
-		if (key == null)
-			throw new NullPointerException("La clave no puede ser null");
-		MyEntry r = insert(new MyEntry(key, value));
-		return r == null ? null : r.value;
+	private void anadeMensaje(Node x, Mensaje m) {
+		if (x.buffer == null)
+			x.buffer = new Object[capacidadBuffer + 1];
+		int pos = Arrays.binarySearch(x.buffer, 0, x.numOfMensajes, m.key);
+		if (pos >= 0) {
+			x.buffer[pos] = m;
+			return;
+		}
+		pos = -(pos + 1);
+		if (x.numOfMensajes == x.buffer.length)
+			x.buffer = Arrays.copyOf(x.buffer, 2 * x.buffer.length);
+		for (int j = x.numOfMensajes - 1; j >= pos; j--)
+			x.buffer[j + 1] = x.buffer[j];
+		x.buffer[pos] = m;
+		x.numOfMensajes++;
+		pendientes++;
+	}
+
+	/**
+	 * Encola en la raíz el mensaje m (modo buffer). Si el buffer de la raíz
+	 * se llena, se vacía hacia abajo por lotes
+	 * 
+	 * @param m
+	 *            mensaje a encolar
+	 */
+	private void encola(Mensaje m) {
+		modificaciones++;
+		if (raiz == null || raiz.leaf) {
+			// Sin nodos internos no hay buffer, se aplica directamente
+			aplicaDirecto(m);
+			return;
+		}
+		anadeMensaje(raiz, m);
+		if (raiz.numOfMensajes > capacidadBuffer) {
+			Node r = raiz;
+			if (r.numOfKeys == 2 * t - 1) {
+				// Igual que en insert, la raíz llena se divide. Sus mensajes
+				// pasan a la nueva raíz, que está por encima de todo
+				Node s = new Node();
+				raiz = s;
+				s.leaf = false;
+				s.children[0] = r;
+				s.subtreeSize = r.subtreeSize;
+				s.buffer = r.buffer;
+				s.numOfMensajes = r.numOfMensajes;
+				r.buffer = null;
+				r.numOfMensajes = 0;
+				split(s, 0);
+			}
+			if (!flush(raiz))
+				// Algún buffer no ha podido vaciarse sin reestructurar el
+				// árbol, se aplica todo lo pendiente con las operaciones
+				// normales
+				vaciaBuffers();
+		}
+	}
+
+	/**
+	 * Vacía el buffer del nodo interno x hacia sus hijos. Los mensajes se
+	 * reparten entre los buffers de los hijos internos (que se vacían a su vez
+	 * si se llenan) o se aplican directamente sobre los hijos hoja, dividiendo
+	 * las hojas llenas como en insertNonFull.
+	 * 
+	 * Los mensajes que requerirían reestructurar x (borrar una clave de x, o
+	 * de una hoja con t-1 claves, o dividir una hoja estando x lleno) se
+	 * quedan en el buffer de x
+	 * 
+	 * @param x
+	 *            nodo interno a vaciar
+	 * @return true si todos los buffers del subárbol de x quedan dentro de su
+	 *         capacidad, false en caso contrario
+	 */
+	private boolean flush(Node x) {
+		Object[] mensajes = x.buffer;
+		int n = x.numOfMensajes;
+		x.buffer = new Object[mensajes.length];
+		x.numOfMensajes = 0;
+		pendientes -= n;
+		int sizeAnterior = size;
+
+		for (int i = 0; i < n; i++) {
+			@SuppressWarnings("unchecked")
+			Mensaje m = (Mensaje) mensajes[i];
+			if (!aplicaEnNodo(x, m))
+				anadeMensaje(x, m);
+		}
+
+		boolean ok = x.numOfMensajes <= capacidadBuffer;
+		if (!x.getHijo(0).leaf)
+			for (int i = 0; i <= x.numOfKeys; i++) {
+				Node y = x.getHijo(i);
+				if (y.numOfMensajes > capacidadBuffer)
+					ok = flush(y) && ok;
+			}
+		// También cambia si sólo se han actualizado valores
+		x.subtreeSize += size - sizeAnterior;
+		x.conResumen = false;
+		return ok;
+	}
+
+	/**
+	 * Baja el mensaje m un nivel desde el nodo interno x
+	 * 
+	 * @param x
+	 *            nodo interno en cuyo buffer estaba m
+	 * @param m
+	 *            mensaje a bajar
+	 * @return false si el mensaje debe quedarse en el buffer de x
+	 */
+	private boolean aplicaEnNodo(Node x, Mensaje m) {
+		int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, m.key);
+		if (pos >= 0) {
+			// La clave está en x, sólo se puede actualizar en el sitio
+			if (m.borrado)
+				return false;
+			x.getEntry(pos).setValue(m.value);
+			return true;
+		}
+		pos = -(pos + 1);
+		Node y = x.getHijo(pos);
+		if (!y.leaf) {
+			// Dividir preventivamente como en insertNonFull, si se puede
+			if (y.numOfKeys == 2 * t - 1 && x.numOfKeys < 2 * t - 1
+					&& divideConBuffer(x, pos))
+				return aplicaEnNodo(x, m);
+			anadeMensaje(y, m);
+			return true;
+		}
+		int p = Arrays.binarySearch(y.entry, 0, y.numOfKeys, m.key);
+		if (m.borrado) {
+			if (p < 0)
+				return true; // No existía
+			if (y.numOfKeys == t - 1)
+				return false;
+			borraDeHoja(y, p);
+			y.subtreeSize--;
+			return true;
+		}
+		if (p >= 0) {
+			y.getEntry(p).setValue(m.value);
+			y.conResumen = false;
+			return true;
+		}
+		if (y.numOfKeys == 2 * t - 1) {
+			if (x.numOfKeys == 2 * t - 1)
+				return false;
+			split(x, pos);
+			return aplicaEnNodo(x, m);
+		}
+		insertaEnHoja(y, -(p + 1), new MyEntry(m.key, m.value));
+		return true;
+	}
+
+	/**
+	 * Divide el hijo interno (lleno) de x en la posición pos, teniendo en
+	 * cuenta su buffer: un mensaje pendiente para la clave que sube a x se
+	 * aplica antes de dividir
+	 * 
+	 * @return false si no se puede dividir (hay un borrado pendiente de la
+	 *         clave que subiría a x)
+	 */
+	private boolean divideConBuffer(Node x, int pos) {
+		Node y = x.getHijo(pos);
+		if (y.numOfMensajes > 0) {
+			MyEntry mediana = y.getEntry(t - 1);
+			int m = Arrays.binarySearch(y.buffer, 0, y.numOfMensajes,
+					mediana.key);
+			if (m >= 0) {
+				if (y.getMensaje(m).borrado)
+					return false;
+				mediana.setValue(y.getMensaje(m).value);
+				for (int j = m; j < y.numOfMensajes - 1; j++)
+					y.buffer[j] = y.buffer[j + 1];
+				y.buffer[--y.numOfMensajes] = null;
+				pendientes--;
+			}
+		}
+		split(x, pos);
+		return true;
+	}
+
+	/**
+	 * Aplica todos los mensajes pendientes con las operaciones normales de
+	 * inserción y borrado, dejando los buffers vacíos. Lo llaman todas las
+	 * operaciones salvo ingest, delete, get y containsKey (ver
+	 * enableWriteBuffer)
+	 */
+	private void vaciaBuffers() {
+		if (pendientes == 0)
+			return;
+		modificaciones++;
+		ArrayList<Mensaje> mensajes = new ArrayList<Mensaje>(pendientes);
+		recogeMensajes(raiz, mensajes);
+		pendientes = 0;
+		for (Iterator<Mensaje> iterator = mensajes.iterator(); iterator
+				.hasNext();)
+			aplicaDirecto(iterator.next());
+	}
+
+	/**
+	 * Saca los mensajes de los buffers del subárbol de x, primero los de los
+	 * hijos (más antiguos) y después los de x. Sólo baja por los nodos
+	 * internos, que son los que tienen buffer
+	 */
+	private void recogeMensajes(Node x, ArrayList<Mensaje> mensajes) {
+		if (!x.getHijo(0).leaf)
+			for (int i = 0; i <= x.numOfKeys; i++)
+				recogeMensajes(x.getHijo(i), mensajes);
+		for (int i = 0; i < x.numOfMensajes; i++)
+			mensajes.add(x.getMensaje(i));
+		x.buffer = null;
+		x.numOfMensajes = 0;
+	}
+
+	private void aplicaDirecto(Mensaje m) {
+		if (!m.borrado)
+			insert(new MyEntry(m.key, m.value));
+		else if (raiz != null && size > 0)
+			remove(raiz, m.key);
+	}
+
+	/**
+	 * Búsqueda de get y containsKey en modo buffer: el primer mensaje para
+	 * key en el camino de búsqueda es más reciente que todo lo que hay por
+	 * debajo
+	 * 
+	 * @return la entrada con clave key (una copia si su inserción está
+	 *         pendiente), null si no está o su borrado está pendiente
+	 */
+	private MyEntry buscaConMensajes(K key) {
+		Node x = raiz;
+		while (true) {
+			if (x.numOfMensajes > 0) {
+				int m = Arrays.binarySearch(x.buffer, 0, x.numOfMensajes, key);
+				if (m >= 0) {
+					Mensaje mensaje = x.getMensaje(m);
+					return mensaje.borrado ? null : new MyEntry(mensaje.key,
+							mensaje.value);
+				}
+			}
+			int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
+			if (pos >= 0)
+				return x.getEntry(pos);
+			if (x.leaf)
+				return null;
+			x = x.getHijo(-(pos + 1));
+		}
+	}
+
+	public int size() {
+		vaciaBuffers();
+		return size;
+	}
+
+	public boolean isEmpty() {
+		vaciaBuffers();
+		return raiz == null || size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	/**
+	 * Método para determinar si el árbol contiene mapeo para la clave key
+	 * 
+	 * Se realiza en O(logn)
+	 * 
+	 * Como en java.util.TreeMap, una entrada con valor null cuenta como
+	 * contenida (igual que en size y en los recorridos)
+	 * 
+	 * En modo caché no cambia el uso de la entrada, pero si ha caducado la
+	 * expulsa y devuelve false (ver enableCache)
+	 * 
+	 * @param key
+	 * @return true si contiene una enrtada para la clave key
+	 */
+	public boolean containsKey(Object key) {
+		if (raiz == null || key == null)
+			return false;
+		return entradaDe(key, false) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	/**
+	 * Función que busca si se contiene el valor value. 
+	 * Si se ha definido ValueToKey, se usa para buscar por clave en O(logn), si no, se realiza una búsqueda lineal
+	 * 
+	 * @param value valor a buscar
+	 * @return true si se encuentra
+	 */
+	public boolean containsValue(Object value) {
+		if (isEmpty())
+			return false;
+		if (valueToKey == null || value == null) {
+			return containsValue(raiz, (V) value);
+		} else
+			return containsKey(valueToKey.toKey((V) value));
+	}
+
+	private boolean containsValue(Node x, V value) {
+		for (int i = 0; i < x.numOfKeys; i++) {
+			if (Objects.equals(value, x.getEntry(i).value))
+				return true;
+			if (!x.leaf && containsValue(x.getHijo(i), value))
+				return true;
+		}
+
+		return (!x.leaf && containsValue(x.getHijo(x.numOfKeys), value));
+	}
+
+	@SuppressWarnings("unchecked")
+	/**
+	 * Metodo que devuelve el valor asociado a la clave key
+	 * 
+	 * Se realiza en O(logn)
+	 *
+	 * En modo caché la entrada pasa a ser la más recientemente usada, y si ha
+	 * caducado se expulsa y se devuelve null (ver enableCache)
+	 *
+	 * @param key
+	 * @return valor asociado a key, null si no existe mapeo para esta clave
+	 */
+	public V get(Object key) {
+		if (raiz == null)
+			return null;
+		MyEntry e = entradaDe(key, true);
+		return e == null ? null : e.value;
+	}
+
+	/**
+	 * Búsqueda de get y containsKey, pasando antes por el filtro de Bloom.
+	 * Sólo cuenta un falso positivo si la clave no está: una entrada caducada
+	 * estaba en el árbol
+	 * 
+	 * @param usar
+	 *            en modo caché, si la entrada pasa a ser la más recientemente
+	 *            usada
+	 * @return la entrada con clave key, null si no está o ha caducado
+	 */
+	@SuppressWarnings("unchecked")
+	private MyEntry entradaDe(Object key, boolean usar) {
+		// Con mensajes pendientes el filtro puede no tener las claves
+		// encoladas, no se usa
+		boolean filtrado = filtro != null && pendientes == 0;
+		if (filtrado && !filtro.mightContain(key))
+			return null;
+		MyEntry e = pendientes == 0 ? buscar(raiz, (K) key)
+				: buscaConMensajes((K) key);
+		if (e == null) {
+			if (filtrado)
+				filtro.falsoPositivo();
+			return null;
+		}
+		return centinela == null ? e : usa((EntradaCache) e, usar);
+	}
+
+	/**
+	 * Método que inserta el valor value con clave key
+	 * 
+	 * Se realiza en O(logn)
+	 * 
+	 * En modo caché la entrada caduca según la caducidad por defecto, y puede
+	 * expulsar otras (ver enableCache)
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public V put(K key, V value) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		vaciaBuffers();
+		V r = insert(nuevaEntrada(key, value, ttlCache));
+		compruebaFiltro();
+		ajustaCache(PASOS_BARRIDO);
+		return r;
+	}
+
+	/**
+	 * Como put, en modo caché, con una caducidad propia para esta entrada en
+	 * lugar de la caducidad por defecto
+	 * 
+	 * @param ttlMillis
+	 *            milisegundos desde ahora hasta que caduca, 0 si no caduca
+	 * @return valor previo de key, null si no tenía o había caducado
+	 * @throws IllegalStateException
+	 *             si el modo caché no está activado
+	 */
+	public V put(K key, V value, long ttlMillis) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (ttlMillis < 0)
+			throw new IllegalArgumentException(
+					"La caducidad no puede ser negativa");
+		if (centinela == null)
+			throw new IllegalStateException("Modo caché no activado");
+		V r = insert(nuevaEntrada(key, value, ttlMillis));
+		compruebaFiltro();
+		ajustaCache(PASOS_BARRIDO);
+		return r;
+	}
+
+	private void compruebaFiltro() {
+		if (filtro != null && size > 2 * filtro.capacity())
+			// El filtro se ha quedado pequeño
+			reconstruyeFiltro();
 	}
 
 	/**
@@ -715,7 +1796,11 @@ public class BTree<K extends Comparable<K>, V> {
 	 */
 	@SuppressWarnings("unchecked")
 	public V remove(Object key) {
-		return isEmpty() ? null : remove(raiz, (K) key);
+		modificaciones++;
+		if (isEmpty())
+			return null;
+		reparaBorde();
+		return remove(raiz, (K) key);
 	}
 
 	/**
@@ -728,78 +1813,2842 @@ public class BTree<K extends Comparable<K>, V> {
 			@SuppressWarnings("unchecked")
 			Entry<? extends K, ? extends V> entry = (java.util.Map.Entry<? extends K, ? extends V>) iterator
 					.next();
-			insert(new MyEntry(entry.getKey(), entry.getValue()));
+			put(entry.getKey(), entry.getValue());
 		}
 	}
 
-	public void clear() {
-		this.raiz = new Node();
-		this.size = 0;
+	/**
+	 * Como en java.util.Map, calcula el nuevo valor de key a partir del
+	 * actual (null si no hay). Si el resultado es null se elimina la entrada
+	 * 
+	 * Se realiza en una única bajada, O(logn)
+	 * 
+	 * @return el nuevo valor asociado a key, null si no queda ninguno
+	 */
+	public V compute(K key,
+			BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return actualiza(key, remappingFunction, true, true, false)[1];
+	}
+
+	/**
+	 * Si key no tiene valor (o es null), le asocia el que devuelva
+	 * mappingFunction, salvo que sea null
+	 * 
+	 * @return el valor asociado a key tras la operación
+	 */
+	public V computeIfAbsent(K key,
+			final Function<? super K, ? extends V> mappingFunction) {
+		return actualiza(key, (k, v) -> mappingFunction.apply(k), true, false,
+				false)[1];
+	}
+
+	/**
+	 * Si key tiene un valor no null, lo sustituye por el que devuelva
+	 * remappingFunction, o elimina la entrada si éste es null
+	 * 
+	 * @return el nuevo valor asociado a key, null si no queda ninguno
+	 */
+	public V computeIfPresent(K key,
+			BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		if (descartaPorFiltro(key))
+			return null;
+		return actualiza(key, remappingFunction, false, true, false)[1];
+	}
+
+	/**
+	 * Si key no tiene valor le asocia value, si no lo combina con el actual
+	 * mediante remappingFunction (si el resultado es null se elimina la
+	 * entrada)
+	 * 
+	 * @return el nuevo valor asociado a key, null si no queda ninguno
+	 */
+	public V merge(K key, final V value,
+			final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		if (value == null)
+			throw new NullPointerException("El valor no puede ser null");
+		return actualiza(key,
+				(k, v) -> v == null ? value : remappingFunction.apply(v, value),
+				true, true, false)[1];
+	}
+
+	/**
+	 * Asocia value a key sólo si key no tiene valor (o es null)
+	 * 
+	 * @return el valor previo, null si no había
+	 */
+	public V putIfAbsent(K key, final V value) {
+		return actualiza(key, (k, v) -> value, true, false, false)[0];
+	}
+
+	/**
+	 * Sustituye el valor de key sólo si está en el árbol, aunque su valor sea
+	 * null (como en java.util.TreeMap). value puede ser null
+	 * 
+	 * @return el valor previo, null si no había
+	 */
+	public V replace(K key, final V value) {
+		if (descartaPorFiltro(key))
+			return null;
+		return actualiza(key, (k, v) -> value, false, true, true)[0];
+	}
+
+	/**
+	 * Sustituye el valor de key por newValue sólo si está en el árbol con
+	 * valor igual a oldValue. Ambos pueden ser null
+	 * 
+	 * @return true si se ha sustituido
+	 */
+	public boolean replace(K key, final V oldValue, final V newValue) {
+		if (descartaPorFiltro(key))
+			return false;
+		final boolean[] hecho = new boolean[1];
+		actualiza(key, (k, v) -> {
+			if (!Objects.equals(v, oldValue))
+				return v;
+			hecho[0] = true;
+			return newValue;
+		}, false, true, true);
+		return hecho[0];
+	}
+
+	/**
+	 * 
+	 * @return true si el filtro asegura que key no está, por lo que las
+	 *         operaciones que sólo actúan sobre claves existentes no tienen
+	 *         que bajar
+	 */
+	private boolean descartaPorFiltro(K key) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		return filtro != null && pendientes == 0 && !filtro.mightContain(key);
+	}
+
+	// Resultado de actualizaNonFull cuando hay que borrar la entrada y no se
+	// puede hacer en el sitio
+	private static final int BORRA_DESPUES = 2;
+
+	/**
+	 * Lectura-modificación-escritura de la entrada con clave key en una única
+	 * bajada: se divide preventivamente como en insert, de forma que si la
+	 * clave no existe se inserta en la hoja a la que se llega, y si la función
+	 * devuelve null y la entrada está en una hoja con más de t-1 entradas se
+	 * borra en el sitio. Sólo si está en un nodo interno o en una hoja mínima
+	 * se vuelve a bajar con remove.
+	 * 
+	 * La clave se considera presente si tiene valor no null, como en
+	 * java.util.Map, y en modo caché no ha caducado. Con nullPresente
+	 * (replace) basta con que la entrada exista, como en containsKey. En modo
+	 * buffer se vacían antes los buffers, ya que hace falta el valor actual
+	 * 
+	 * @param f
+	 *            función que calcula el nuevo valor a partir del actual (null
+	 *            si no está). Se llama como mucho una vez
+	 * @param siFalta
+	 *            si se aplica f cuando la clave no está presente
+	 * @param siEsta
+	 *            si se aplica f cuando la clave está presente
+	 * @param nullPresente
+	 *            si una entrada con valor null está presente, y un resultado
+	 *            null de f se guarda en lugar de borrar la entrada
+	 * @return {valor previo, valor tras la operación}
+	 */
+	@SuppressWarnings("unchecked")
+	private V[] actualiza(K key, BiFunction<? super K, ? super V, ? extends V> f,
+			boolean siFalta, boolean siEsta, boolean nullPresente) {
+		if (key == null || f == null)
+			throw new NullPointerException();
+		vaciaBuffers();
+		if (raiz == null) {
+			raiz = new Node();
+			size = 0;
+		}
+		reparaBorde();
+		raiz = creceSiLlena(raiz);
+		modificaciones++;
+		V[] r = (V[]) new Object[2];
+		if (actualizaNonFull(raiz, key, f, siFalta, siEsta, nullPresente, r)
+				== BORRA_DESPUES)
+			remove(raiz, key);
+		if (raiz == null)
+			raiz = new Node();
+		compruebaFiltro();
+		ajustaCache(PASOS_BARRIDO);
+		return r;
+	}
+
+	/**
+	 * Baja por el nodo x, que no está lleno, aplicando f a la entrada con
+	 * clave key (ver actualiza)
+	 * 
+	 * @param r
+	 *            array donde se dejan el valor previo y el nuevo
+	 * @return variación del número de entradas del subárbol de x (1, 0 o -1),
+	 *         o BORRA_DESPUES si la entrada se debe borrar aparte
+	 */
+	private int actualizaNonFull(Node x, K key,
+			BiFunction<? super K, ? super V, ? extends V> f, boolean siFalta,
+			boolean siEsta, boolean nullPresente, V[] r) {
+		x.conResumen = false;
+		int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
+		if (pos >= 0) {
+			MyEntry e = x.getEntry(pos);
+			V actual = vigente(e);
+			boolean presente = actual != null || nullPresente
+					&& (centinela == null || !caducada((EntradaCache) e));
+			r[0] = r[1] = actual;
+			if (presente ? !siEsta : !siFalta) {
+				// Acierto sin cambios (computeIfAbsent, putIfAbsent...)
+				if (presente)
+					toca(e);
+				return 0;
+			}
+			V v = f.apply(key, actual);
+			r[1] = v;
+			if (v != null || nullPresente) {
+				sobrescribe(e, nuevaEntrada(key, v, ttlCache));
+				return 0;
+			}
+			if (!presente && !siEsta)
+				// computeIfAbsent sobre un valor null: no se toca
+				return 0;
+			if (x.leaf && (x == raiz || x.numOfKeys > t - 1)) {
+				borraDeHoja(x, pos);
+				x.subtreeSize--;
+				return -1;
+			}
+			return BORRA_DESPUES;
+		}
+		pos = -(pos + 1);
+		if (x.leaf) {
+			if (!siFalta)
+				return 0;
+			V v = f.apply(key, null);
+			r[1] = v;
+			if (v == null)
+				return 0;
+			insertaEnHoja(x, pos, nuevaEntrada(key, v, ttlCache));
+			return 1;
+		}
+		if (x.getHijo(pos).numOfKeys == 2 * t - 1) {
+			split(x, pos);
+			int cmp = key.compareTo(x.getEntry(pos).key);
+			if (cmp == 0)
+				// La clave ha subido a x
+				return actualizaNonFull(x, key, f, siFalta, siEsta,
+						nullPresente, r);
+			if (cmp > 0)
+				pos++;
+		}
+		int d = actualizaNonFull(x.getHijo(pos), key, f, siFalta, siEsta,
+				nullPresente, r);
+		if (d != BORRA_DESPUES)
+			x.subtreeSize += d;
+		return d;
 	}
 
-	public String toString() {
-		return raiz.toString();
+	// Estimación de tamaños en una JVM de 64 bits con referencias comprimidas
+	private static final int CABECERA = 12;
+	private static final int REFERENCIA = 4;
+	private static final int CABECERA_ARRAY = 16;
+	// Node: 5 referencias (children, entry, buffer, resumen y el árbol), 3
+	// int, el long del hash y 2 boolean
+	private static final int BYTES_NODO = alinea(CABECERA + 5 * REFERENCIA
+			+ 3 * 4 + 8 + 2);
+	// MyEntry y Mensaje: clave, valor y el árbol (y el boolean de Mensaje)
+	private static final int BYTES_ENTRADA = alinea(CABECERA + 3 * REFERENCIA);
+	private static final int BYTES_MENSAJE = alinea(CABECERA + 3 * REFERENCIA
+			+ 1);
+	// EntradaCache: además, los dos enlaces de la lista de uso, peso y
+	// caducidad
+	private static final int BYTES_ENTRADA_CACHE = alinea(CABECERA + 5
+			* REFERENCIA + 2 * 8);
+
+	private static int alinea(long bytes) {
+		return (int) ((bytes + 7) & ~7L);
+	}
+
+	private static long bytesArray(int longitud) {
+		return alinea(CABECERA_ARRAY + (long) longitud * REFERENCIA);
+	}
+
+	/**
+	 * Recorre el árbol midiendo su ocupación de memoria: número de nodos,
+	 * histograma de ocupación, altura y una estimación de los bytes que ocupa
+	 * la estructura (nodos, arrays, entradas y mensajes pendientes, sin
+	 * contar claves ni valores). No vacía los buffers del modo buffer
+	 * 
+	 * Se realiza en O(n/t)
+	 * 
+	 * @return informe de ocupación
+	 */
+	public TreeFootprint footprint() {
+		int[] histograma = new int[TreeFootprint.INTERVALOS];
+		// nodos, hojas, entradas, mensajes, bytes
+		long[] cuentas = new long[5];
+		int altura = raiz == null ? 0 : mide(raiz, histograma, cuentas) + 1;
+		return new TreeFootprint(t, altura, (int) cuentas[0],
+				(int) cuentas[1], cuentas[2], cuentas[3], cuentas[4],
+				histograma);
+	}
+
+	/**
+	 * 
+	 * @return altura del subárbol de x
+	 */
+	private int mide(Node x, int[] histograma, long[] cuentas) {
+		cuentas[0]++;
+		cuentas[2] += x.numOfKeys;
+		cuentas[3] += x.numOfMensajes;
+		cuentas[4] += BYTES_NODO + bytesArray(x.children.length)
+				+ bytesArray(x.entry.length) + (long) x.numOfKeys
+				* (centinela == null ? BYTES_ENTRADA : BYTES_ENTRADA_CACHE);
+		if (x.buffer != null)
+			cuentas[4] += bytesArray(x.buffer.length) + (long) x.numOfMensajes
+					* BYTES_MENSAJE;
+		histograma[Math.min(TreeFootprint.INTERVALOS - 1, x.numOfKeys
+				* TreeFootprint.INTERVALOS / (2 * t - 1))]++;
+		if (x.leaf) {
+			cuentas[1]++;
+			return 0;
+		}
+		int altura = 0;
+		for (int i = 0; i <= x.numOfKeys; i++)
+			altura = mide(x.getHijo(i), histograma, cuentas);
+		return altura + 1;
+	}
+
+	/**
+	 * Compactación incremental: recorre el árbol por niveles, de la raíz a las
+	 * hojas, fusionando hermanos adyacentes que caben en un nodo (merge) o, si
+	 * tres hermanos caben en dos, llenando el primero con rotaciones desde el
+	 * segundo (las de removeNoExisting) y fusionando el segundo con el
+	 * tercero. Sólo se fusionan hijos de nodos con más de t-1 claves, así que
+	 * el invariante se mantiene tras cada paso.
+	 * 
+	 * Cada llamada hace como mucho budget pasos (pares de hermanos revisados,
+	 * fusiones y rotaciones, cada uno O(t), aunque el paso de tres a dos
+	 * hermanos se completa aunque se acabe el presupuesto) y la siguiente
+	 * sigue por donde se quedó, por lo que se puede ir intercalando con el
+	 * resto de operaciones sin pausas largas
+	 * 
+	 * @param budget
+	 *            número máximo de pasos de esta llamada
+	 * @return true si se ha terminado una pasada completa por el árbol (la
+	 *         siguiente llamada empieza otra)
+	 */
+	public boolean compact(int budget) {
+		if (budget < 1)
+			throw new IllegalArgumentException(
+					"El presupuesto debe ser mayor que 0");
+		vaciaBuffers();
+		reparaBorde();
+		modificaciones++;
+		while (budget > 0) {
+			// Bajar hasta el nodo del nivel nivelCompactacion donde está el
+			// cursor, guardando la clave que lo separa del siguiente
+			Node x = raiz;
+			K hasta = null;
+			for (int d = 0; d < nivelCompactacion && x != null && !x.leaf; d++) {
+				int pos = 0;
+				if (cursorCompactacion != null) {
+					pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys,
+							cursorCompactacion);
+					pos = pos >= 0 ? pos + 1 : -(pos + 1);
+				}
+				if (pos < x.numOfKeys)
+					hasta = x.getEntry(pos).key;
+				x = x.getHijo(pos);
+			}
+			if (x == null || x.leaf) {
+				// No quedan niveles con hijos, pasada terminada
+				nivelCompactacion = 0;
+				cursorCompactacion = null;
+				return true;
+			}
+			budget -= compactaHijos(x, budget);
+			if (cursorCompactacion != null && budget <= 0)
+				// x a medias, se sigue en la siguiente llamada
+				return false;
+			cursorCompactacion = hasta;
+			if (hasta == null)
+				nivelCompactacion++;
+		}
+		return false;
+	}
+
+	/**
+	 * Compacta los hijos de x a partir del par de hermanos separado por la
+	 * clave cursorCompactacion (todos si es null), ver compact
+	 * 
+	 * @return pasos realizados. Si se acaba el presupuesto, cursorCompactacion
+	 *         queda en la clave de x por la que seguir; si no, null
+	 */
+	private int compactaHijos(Node x, int presupuesto) {
+		int usados = 0;
+		int i = 0;
+		if (cursorCompactacion != null) {
+			i = Arrays.binarySearch(x.entry, 0, x.numOfKeys,
+					cursorCompactacion);
+			if (i < 0)
+				i = -(i + 1);
+		}
+		while (i < x.numOfKeys) {
+			if (usados >= presupuesto) {
+				cursorCompactacion = x.getEntry(i).key;
+				return usados;
+			}
+			usados++;
+			if (x != raiz && x.numOfKeys == t - 1)
+				// x no puede perder claves
+				break;
+			Node y = x.getHijo(i);
+			Node z = x.getHijo(i + 1);
+			if (y.numOfKeys + 1 + z.numOfKeys <= 2 * t - 1) {
+				merge(x, i, y, z);
+				if (x == raiz && x.numOfKeys == 0) {
+					// El árbol decrece en altura
+					raiz = y;
+					break;
+				}
+				continue; // y puede caber con el siguiente
+			}
+			if (i + 1 < x.numOfKeys) {
+				Node w = x.getHijo(i + 2);
+				if (y.numOfKeys + z.numOfKeys + w.numOfKeys + 2 <= 2 * (2 * t - 1) + 1) {
+					// Los tres caben en dos: llenar y con las de z, y fusionar
+					// lo que queda de z con w
+					while (y.numOfKeys < 2 * t - 1) {
+						pasaDeDerecha(x, i);
+						usados++;
+					}
+					merge(x, i + 1, z, w);
+					usados++;
+					i++;
+					continue;
+				}
+			}
+			i++;
+		}
+		cursorCompactacion = null;
+		return usados;
+	}
+
+	/**
+	 * Monoide sobre los valores: una operación asociativa con elemento neutro,
+	 * con la que se resumen los valores de un rango de claves (suma, mínimo,
+	 * máximo...). combine se aplica siempre en orden de clave, por lo que no
+	 * necesita ser conmutativa
+	 */
+	public interface Monoid<T> {
+		T identity();
+
+		T combine(T a, T b);
+	}
+
+	/**
+	 * Activa los resúmenes por subárbol: cada nodo guarda la combinación,
+	 * según monoid, de los valores de su subárbol, de forma que aggregate
+	 * resuelve un rango combinando O(log n) resúmenes en lugar de recorrer
+	 * sus entradas.
+	 *
+	 * Las inserciones, borrados, divisiones, fusiones y rotaciones invalidan
+	 * el resumen de los nodos que cambian (todos en el camino de la
+	 * operación), y aggregate recalcula sólo los que necesita, cada uno a
+	 * partir de los de sus hijos en O(t). Se realiza en O(n), para calcular
+	 * los resúmenes de todo el árbol
+	 *
+	 * @param monoid
+	 *            monoide con el que se combinan los valores
+	 */
+	public void enableAggregates(Monoid<V> monoid) {
+		if (monoid == null)
+			throw new NullPointerException("El monoide no puede ser null");
+		vaciaBuffers();
+		this.monoide = monoid;
+		if (raiz != null)
+			recalculaResumenes(raiz);
+	}
+
+	public void disableAggregates() {
+		this.monoide = null;
+	}
+
+	/**
+	 * Recalcula los resúmenes de todo el subárbol de x, aunque sean válidos
+	 * (pueden ser de otro monoide)
+	 */
+	private void recalculaResumenes(Node x) {
+		if (!x.leaf)
+			for (int i = 0; i <= x.numOfKeys; i++)
+				recalculaResumenes(x.getHijo(i));
+		resume(x);
+	}
+
+	/**
+	 *
+	 * @return resumen de los valores del subárbol de x, recalculando los que
+	 *         no son válidos
+	 */
+	private V resumenDe(Node x) {
+		if (!x.conResumen)
+			resume(x);
+		return x.resumen;
+	}
+
+	/**
+	 * Calcula el resumen de x y, si están activados, su hash de Merkle, a
+	 * partir de sus entradas y de los de sus hijos (recalculando los que no
+	 * son válidos)
+	 */
+	private void resume(Node x) {
+		V r = monoide == null ? null : monoide.identity();
+		long h = 0;
+		for (int i = 0; i <= x.numOfKeys; i++) {
+			if (!x.leaf) {
+				Node y = x.getHijo(i);
+				if (!y.conResumen)
+					resume(y);
+				if (monoide != null)
+					r = monoide.combine(r, y.resumen);
+				h += y.hash;
+			}
+			if (i < x.numOfKeys) {
+				if (monoide != null)
+					r = anadeValor(r, x.getEntry(i));
+				if (merkle)
+					h += hashEntrada(x.getEntry(i));
+			}
+		}
+		x.resumen = r;
+		x.hash = h;
+		x.conResumen = true;
+	}
+
+	private V anadeValor(V r, MyEntry e) {
+		// Las entradas con valor null se consideran ausentes
+		return e.value == null ? r : monoide.combine(r, e.value);
+	}
+
+	/**
+	 *
+	 * @return combinación de todos los valores del árbol, O(1) si no ha
+	 *         cambiado desde la última consulta
+	 * @throws IllegalStateException
+	 *             si no se han activado los resúmenes (ver enableAggregates)
+	 */
+	public V aggregate() {
+		if (monoide == null)
+			throw new IllegalStateException("Resúmenes no activados");
+		vaciaBuffers();
+		return raiz == null ? monoide.identity() : resumenDe(raiz);
+	}
+
+	/**
+	 * Combinación de los valores con clave en [fromKey, toKey), como en
+	 * subMap(fromKey, toKey)
+	 *
+	 * Se realiza en O(t log n)
+	 */
+	public V aggregate(K fromKey, K toKey) {
+		return aggregate(fromKey, true, toKey, false);
+	}
+
+	/**
+	 * Combinación, en orden de clave, de los valores con clave entre fromKey
+	 * y toKey. Baja por los caminos de los dos extremos, usando los resúmenes
+	 * de los subárboles que quedan enteros entre ellos
+	 *
+	 * Se realiza en O(t log n)
+	 *
+	 * @throws IllegalStateException
+	 *             si no se han activado los resúmenes (ver enableAggregates)
+	 */
+	public V aggregate(K fromKey, boolean fromInclusive, K toKey,
+			boolean toInclusive) {
+		if (fromKey == null || toKey == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (fromKey.compareTo(toKey) > 0)
+			throw new IllegalArgumentException("fromKey > toKey");
+		if (monoide == null)
+			throw new IllegalStateException("Resúmenes no activados");
+		vaciaBuffers();
+		if (raiz == null)
+			return monoide.identity();
+		return agrega(raiz, fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	/**
+	 * Combinación de los valores del subárbol de x con clave entre desde y
+	 * hasta (null si el rango no está acotado por ese lado)
+	 */
+	private V agrega(Node x, K desde, boolean desdeInclusivo, K hasta,
+			boolean hastaInclusivo) {
+		if (desde == null && hasta == null)
+			return resumenDe(x);
+		// Las entradas de x en el rango son las de [i, j)
+		int i = 0, j = x.numOfKeys;
+		if (desde != null) {
+			i = Arrays.binarySearch(x.entry, 0, x.numOfKeys, desde);
+			i = i >= 0 ? (desdeInclusivo ? i : i + 1) : -(i + 1);
+		}
+		if (hasta != null) {
+			j = Arrays.binarySearch(x.entry, 0, x.numOfKeys, hasta);
+			j = j >= 0 ? (hastaInclusivo ? j + 1 : j) : -(j + 1);
+		}
+		V r = monoide.identity();
+		if (i > j)
+			// Rango vacío (desde == hasta, excluido)
+			return r;
+		if (x.leaf) {
+			for (int k = i; k < j; k++)
+				r = anadeValor(r, x.getEntry(k));
+			return r;
+		}
+		if (i == j)
+			// Todo el rango está en un único hijo
+			return agrega(x.getHijo(i), desde, desdeInclusivo, hasta,
+					hastaInclusivo);
+		// El hijo i tiene el extremo izquierdo, el j el derecho, y los de en
+		// medio están enteros en el rango
+		r = agrega(x.getHijo(i), desde, desdeInclusivo, null, false);
+		for (int k = i; k < j; k++) {
+			r = anadeValor(r, x.getEntry(k));
+			if (k + 1 < j)
+				r = monoide.combine(r, resumenDe(x.getHijo(k + 1)));
+		}
+		return monoide.combine(r,
+				agrega(x.getHijo(j), null, false, hasta, hastaInclusivo));
+	}
+
+	/**
+	 *
+	 * @return la entrada e para devolverla a los usuarios del árbol: con los
+	 *         resúmenes o los hashes de Merkle activados, una vista cuyo
+	 *         setValue los invalida en el camino de e (ver EntradaResumida)
+	 */
+	private Entry<K, V> expone(MyEntry e) {
+		return monoide == null && !merkle ? e : new EntradaResumida(e);
+	}
+
+	/**
+	 * Invalida los resúmenes del camino desde la raíz hasta la entrada con
+	 * clave key
+	 */
+	private void invalidaCamino(K key) {
+		Node x = raiz;
+		while (x != null) {
+			x.conResumen = false;
+			int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
+			if (pos >= 0 || x.leaf)
+				return;
+			x = x.getHijo(-(pos + 1));
+		}
+	}
+
+	/**
+	 * Entrada del árbol devuelta con los resúmenes o los hashes de Merkle
+	 * activados. Las entradas (MyEntry) no saben en qué árbol están (splitAt
+	 * y join pasan nodos de un árbol a otro), así que el cambio de valor se
+	 * anota aquí
+	 */
+	private class EntradaResumida implements Entry<K, V> {
+		private final MyEntry e;
+
+		EntradaResumida(MyEntry e) {
+			this.e = e;
+		}
+
+		@Override
+		public K getKey() {
+			return e.key;
+		}
+
+		@Override
+		public V getValue() {
+			return e.value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			V old = e.setValue(value);
+			invalidaCamino(e.key);
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return e.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			return e.hashCode();
+		}
+
+		public String toString() {
+			return e.toString();
+		}
+	}
+
+	/**
+	 * Activa los hashes de Merkle por subárbol, para comparar réplicas del
+	 * árbol con diff sin recorrerlas enteras. Cada nodo guarda el hash de su
+	 * subárbol, calculado a partir de los hashes de sus entradas (de los
+	 * bytes de la clave y el valor, ver hashEntrada) y de los de sus hijos,
+	 * que se invalida en el camino de cada modificación (inserciones,
+	 * borrados, divisiones, fusiones y rotaciones, como los resúmenes de
+	 * enableAggregates) y se recalcula al consultarlo, en O(t) por nodo.
+	 * 
+	 * Los hashes se combinan sumándolos (módulo 2^64), de forma que el hash
+	 * de un rango de claves no depende de la forma del árbol: dos réplicas
+	 * con las mismas entradas tienen el mismo hash en cualquier rango aunque
+	 * sus grados o las operaciones que las han llevado hasta ahí, y por tanto
+	 * sus nodos, sean distintos. Todas las réplicas deben usar por eso la
+	 * misma codificación. Una entrada con valor null tiene su propio hash,
+	 * que depende de la clave, distinto del de la clave ausente. Se realiza en
+	 * O(n), para calcular los hashes de todo el árbol
+	 * 
+	 * @param keyCodec
+	 *            codificación de las claves, como la de los snapshots
+	 * @param valueCodec
+	 *            codificación de los valores (no se usa con los null)
+	 */
+	public void enableMerkleHashes(Codec<K> keyCodec, Codec<V> valueCodec) {
+		vaciaBuffers();
+		this.merkle = true;
+		this.codecClaves = Objects.requireNonNull(keyCodec);
+		this.codecValores = Objects.requireNonNull(valueCodec);
+		if (raiz != null)
+			recalculaResumenes(raiz);
+	}
+
+	public void disableMerkleHashes() {
+		this.merkle = false;
+		this.codecClaves = null;
+		this.codecValores = null;
+	}
+
+	/**
+	 * 
+	 * @return hash de Merkle de todo el árbol, en O(1) si no ha cambiado
+	 * @throws IllegalStateException
+	 *             si los hashes no están activados
+	 */
+	public long merkleHash() {
+		return merkleHash(null, false, null, false);
+	}
+
+	/**
+	 * Hash de Merkle de las entradas con clave en el rango, combinando O(log
+	 * n) hashes de subárboles
+	 * 
+	 * @param fromKey
+	 *            límite inferior, null si no hay
+	 * @param toKey
+	 *            límite superior, null si no hay
+	 * @return suma de los hashes de las entradas del rango, 0 si no hay
+	 *         ninguna
+	 * @throws IllegalStateException
+	 *             si los hashes no están activados
+	 */
+	public long merkleHash(K fromKey, boolean fromInclusive, K toKey,
+			boolean toInclusive) {
+		if (!merkle)
+			throw new IllegalStateException("Hashes de Merkle no activados");
+		vaciaBuffers();
+		if (raiz == null)
+			return 0;
+		return hashRango(raiz, fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	/**
+	 * 
+	 * @return entradas con clave en el rango, también las de valor null, en
+	 *         orden creciente de clave (copias, como las de la navegación)
+	 */
+	public List<Entry<K, V>> rangeEntries(K fromKey, boolean fromInclusive,
+			K toKey, boolean toInclusive) {
+		ArrayList<Entry<K, V>> r = new ArrayList<Entry<K, V>>();
+		for (Iterator<Entry<K, V>> it = new Recorrido(fromKey, fromInclusive,
+				false); it.hasNext();) {
+			Entry<K, V> e = it.next();
+			if (toKey != null) {
+				int cmp = e.getKey().compareTo(toKey);
+				if (cmp > 0 || cmp == 0 && !toInclusive)
+					break;
+			}
+			r.add(new AbstractMap.SimpleImmutableEntry<K, V>(e));
+		}
+		return r;
+	}
+
+	/**
+	 * Compara el árbol con una réplica, bajando sólo por los subárboles cuyo
+	 * hash no coincide con el del mismo rango de claves en other, de forma
+	 * que el coste crece con el número de diferencias y no con el tamaño del
+	 * árbol: por cada nodo con diferencias se piden a other los hashes de los
+	 * rangos de sus hijos y de sus entradas (O(t) peticiones), y por cada
+	 * hoja con diferencias, sus entradas
+	 * 
+	 * @param otherRootHash
+	 *            hash de toda la réplica (merkleHash()); si coincide con el
+	 *            del árbol no se pide nada a other
+	 * @param other
+	 *            réplica con la que se compara
+	 * @return claves, en orden creciente, que sólo están en uno de los dos o
+	 *         tienen valores distintos
+	 * @throws IllegalStateException
+	 *             si los hashes no están activados
+	 */
+	public List<K> diff(long otherRootHash, MerkleReplica<K, V> other) {
+		ArrayList<K> r = new ArrayList<K>();
+		if (merkleHash() != otherRootHash)
+			diferencias(raiz == null ? new Node() : raiz, null, null, other,
+					r);
+		return r;
+	}
+
+	/**
+	 * Copia de other las entradas en las que difiere (ver diff), dejando el
+	 * árbol igual que la réplica
+	 * 
+	 * @return número de claves cambiadas
+	 */
+	public int sync(long otherRootHash, MerkleReplica<K, V> other) {
+		List<K> claves = diff(otherRootHash, other);
+		for (K key : claves) {
+			List<Entry<K, V>> e = other.rangeEntries(key, true, key, true);
+			if (e.isEmpty())
+				remove(key);
+			else
+				put(key, e.get(0).getValue());
+		}
+		return claves.size();
+	}
+
+	/**
+	 * Añade a r las claves en las que el subárbol de x difiere de other,
+	 * sabiendo que sus hashes no coinciden (ver diff)
+	 * 
+	 * @param desde
+	 *            clave anterior al subárbol (excluida), null si no hay
+	 * @param hasta
+	 *            clave siguiente al subárbol (excluida), null si no hay
+	 */
+	private void diferencias(Node x, K desde, K hasta,
+			MerkleReplica<K, V> other, ArrayList<K> r) {
+		if (x.leaf) {
+			comparaEntradas(x, other.rangeEntries(desde, false, hasta, false),
+					r);
+			return;
+		}
+		for (int i = 0; i <= x.numOfKeys; i++) {
+			K hastaHijo = i == x.numOfKeys ? hasta : x.getEntry(i).key;
+			Node y = x.getHijo(i);
+			if (hashDe(y) != other.merkleHash(desde, false, hastaHijo, false))
+				diferencias(y, desde, hastaHijo, other, r);
+			if (i < x.numOfKeys) {
+				MyEntry e = x.getEntry(i);
+				if (hashEntrada(e) != other.merkleHash(e.key, true, e.key,
+						true))
+					r.add(e.key);
+				desde = e.key;
+			}
+		}
+	}
+
+	/**
+	 * Añade a r, en orden, las claves en las que difieren las entradas de la
+	 * hoja x y las entradas remotas del mismo rango
+	 */
+	private void comparaEntradas(Node x, List<Entry<K, V>> remotas,
+			ArrayList<K> r) {
+		int i = 0, j = 0;
+		while (i < x.numOfKeys || j < remotas.size()) {
+			MyEntry e = i < x.numOfKeys ? x.getEntry(i) : null;
+			Entry<K, V> o = j < remotas.size() ? remotas.get(j) : null;
+			int cmp = e == null ? 1 : o == null ? -1 : e.compareTo(o
+					.getKey());
+			if (cmp < 0) {
+				r.add(e.key);
+				i++;
+			} else if (cmp > 0) {
+				r.add(o.getKey());
+				j++;
+			} else {
+				if (!Objects.equals(e.value, o.getValue()))
+					r.add(e.key);
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return hash de Merkle del subárbol de x, recalculando los que no son
+	 *         válidos
+	 */
+	private long hashDe(Node x) {
+		if (!x.conResumen)
+			resume(x);
+		return x.hash;
+	}
+
+	/**
+	 * Hash de una entrada, a partir de los bytes de su clave y su valor
+	 * codificados. Con valor null, el de la clave mezclado con una marca
+	 */
+	private long hashEntrada(MyEntry e) {
+		long h = hashBytes(GAMMA, codecClaves.encode(e.key));
+		if (e.value == null)
+			return mezcla(h + NULO);
+		return hashBytes(h, codecValores.encode(e.value));
+	}
+
+	private static final long GAMMA = 0x9E3779B97F4A7C15L;
+	private static final long NULO = 0xD6E8FEB86659FD93L;
+
+	/**
+	 * Sigue el hash h con los bytes de b, de 8 en 8 y empezando por su
+	 * longitud (para que la clave y el valor no puedan intercambiar bytes),
+	 * mezclando cada palabra con el finalizador de SplitMix64
+	 */
+	private static long hashBytes(long h, byte[] b) {
+		h = mezcla(h + GAMMA * (b.length + 1L));
+		for (int i = 0; i < b.length; i += 8) {
+			long w = 0;
+			for (int j = Math.min(i + 8, b.length) - 1; j >= i; j--)
+				w = w << 8 | (b[j] & 0xFF);
+			h = mezcla((h + GAMMA) ^ w);
+		}
+		return h;
+	}
+
+	/**
+	 * Finalizador de SplitMix64
+	 */
+	private static long mezcla(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Hash de las entradas del subárbol de x con clave entre desde y hasta
+	 * (null si el rango no está acotado por ese lado), como agrega
+	 */
+	private long hashRango(Node x, K desde, boolean desdeInclusivo, K hasta,
+			boolean hastaInclusivo) {
+		if (desde == null && hasta == null)
+			return hashDe(x);
+		// Las entradas de x en el rango son las de [i, j)
+		int i = 0, j = x.numOfKeys;
+		if (desde != null) {
+			i = Arrays.binarySearch(x.entry, 0, x.numOfKeys, desde);
+			i = i >= 0 ? (desdeInclusivo ? i : i + 1) : -(i + 1);
+		}
+		if (hasta != null) {
+			j = Arrays.binarySearch(x.entry, 0, x.numOfKeys, hasta);
+			j = j >= 0 ? (hastaInclusivo ? j + 1 : j) : -(j + 1);
+		}
+		if (i > j)
+			return 0;
+		long h = 0;
+		if (x.leaf) {
+			for (int k = i; k < j; k++)
+				h += hashEntrada(x.getEntry(k));
+			return h;
+		}
+		if (i == j)
+			return hashRango(x.getHijo(i), desde, desdeInclusivo, hasta,
+					hastaInclusivo);
+		h = hashRango(x.getHijo(i), desde, desdeInclusivo, null, false);
+		for (int k = i; k < j; k++) {
+			h += hashEntrada(x.getEntry(k));
+			if (k + 1 < j)
+				h += hashDe(x.getHijo(k + 1));
+		}
+		return h + hashRango(x.getHijo(j), null, false, hasta, hastaInclusivo);
+	}
+
+	// Entradas que revisa el barrido de caducadas tras cada escritura en
+	// modo caché
+	private static final int PASOS_BARRIDO = 2;
+	private static final long SIN_CADUCIDAD = Long.MAX_VALUE;
+
+	/**
+	 * Activa el modo caché con capacidad en número de entradas (ver el otro
+	 * enableCache)
+	 * 
+	 * @param maxEntries
+	 *            número máximo de entradas, 0 si no hay límite
+	 * @param ttlMillis
+	 *            caducidad por defecto, 0 si las entradas no caducan
+	 */
+	public void enableCache(long maxEntries, long ttlMillis) {
+		enableCache(maxEntries, null, ttlMillis);
+	}
+
+	/**
+	 * Activa el modo caché: el árbol guarda como mucho budget de peso (por
+	 * ejemplo, bytes según weigher) y cada entrada caduca ttlMillis después
+	 * de su última escritura (put puede dar a cada entrada su propia
+	 * caducidad).
+	 * 
+	 * Las entradas forman además una lista doblemente enlazada por orden de
+	 * uso: get encuentra la entrada con una única bajada y la pasa al final
+	 * de la lista en O(1), y las escrituras (put, compute, merge...) la pasan
+	 * al final renovando su caducidad. Tras cada escritura se revisan
+	 * PASOS_BARRIDO entradas de la lista, siguiendo por donde se quedó la
+	 * anterior, expulsando las caducadas, y después se expulsan las menos
+	 * recientemente usadas hasta volver a la capacidad, cada una con un
+	 * remove O(log n). sweep permite además barrer cuando el árbol está
+	 * ocioso.
+	 * 
+	 * get y containsKey no devuelven las entradas caducadas, las expulsan;
+	 * size, los recorridos y la navegación las cuentan hasta que se barren.
+	 * containsKey no cambia el uso de la entrada.
+	 * El setValue de las entradas de los recorridos no cambia su uso, su
+	 * caducidad ni su peso.
+	 * 
+	 * Los árboles de splitAt no conservan el modo. Si left lo tiene, join
+	 * pone las entradas de right como las menos recientemente usadas: si
+	 * right también está en modo caché (con el mismo weigher), empalmando su
+	 * lista en O(1), y si no, enlazándolas en O(m) con la caducidad por
+	 * defecto de left; después expulsa hasta volver a la capacidad. Se
+	 * realiza en O(n), para enlazar las entradas que ya hay, todas como igual
+	 * de recientes
+	 * 
+	 * @param budget
+	 *            suma máxima de los pesos de las entradas, 0 si no hay límite
+	 * @param weigher
+	 *            peso de cada entrada (no negativo), null si todas pesan 1
+	 * @param ttlMillis
+	 *            caducidad por defecto, 0 si las entradas no caducan
+	 * @throws IllegalStateException
+	 *             si el modo buffer está activado
+	 */
+	public void enableCache(long budget,
+			ToLongBiFunction<? super K, ? super V> weigher, long ttlMillis) {
+		if (budget < 0 || ttlMillis < 0)
+			throw new IllegalArgumentException(
+					"La capacidad y la caducidad no pueden ser negativas");
+		if (capacidadBuffer > 0)
+			throw new IllegalStateException(
+					"El modo caché no se puede usar con el modo buffer");
+		this.capacidadCache = budget;
+		this.pesaje = weigher;
+		this.ttlCache = ttlMillis;
+		reconstruyeCache();
+		ajustaCache(0);
+	}
+
+	/**
+	 * Desactiva el modo caché. Las entradas se conservan, y dejan de caducar
+	 */
+	public void disableCache() {
+		centinela = barrido = null;
+		pesoTotal = 0;
+		ttlCache = 0;
+	}
+
+	/**
+	 * Barrido de caducadas del modo caché: revisa como mucho budget entradas
+	 * de la lista de uso, siguiendo por donde se quedó el anterior (o la
+	 * última escritura), y expulsa las caducadas, cada una en O(log n). Está
+	 * pensado para llamarlo periódicamente cuando el árbol está ocioso, desde
+	 * el mismo hilo que lo usa
+	 * 
+	 * @param budget
+	 *            número máximo de entradas a revisar
+	 * @return número de entradas expulsadas
+	 * @throws IllegalStateException
+	 *             si el modo caché no está activado
+	 */
+	public int sweep(int budget) {
+		if (budget < 1)
+			throw new IllegalArgumentException(
+					"El presupuesto debe ser mayor que 0");
+		if (centinela == null)
+			throw new IllegalStateException("Modo caché no activado");
+		return barre(budget);
+	}
+
+	/**
+	 * Vuelve a enlazar todas las entradas del árbol en la lista del modo
+	 * caché, en orden de clave, convirtiendo en EntradaCache las que no lo
+	 * son
+	 */
+	private void reconstruyeCache() {
+		centinela = new EntradaCache(null, null, SIN_CADUCIDAD);
+		centinela.anterior = centinela.siguiente = centinela;
+		barrido = centinela;
+		pesoTotal = 0;
+		if (raiz != null && size > 0) {
+			// Cambian las entradas de los nodos
+			modificaciones++;
+			enlazaSubarbol(raiz, caducidad(ttlCache));
+		}
+	}
+
+	private void enlazaSubarbol(Node x, long expira) {
+		for (int i = 0; i < x.numOfKeys; i++) {
+			if (!x.leaf)
+				enlazaSubarbol(x.getHijo(i), expira);
+			MyEntry e = x.getEntry(i);
+			if (!(e instanceof BTree.EntradaCache)) {
+				e = new EntradaCache(e.key, e.value, expira);
+				x.entry[i] = e;
+			}
+			enlaza((EntradaCache) e);
+		}
+		if (!x.leaf)
+			enlazaSubarbol(x.getHijo(x.numOfKeys), expira);
+	}
+
+	/**
+	 * 
+	 * @return entrada nueva para insertar en el árbol; en modo caché, una
+	 *         EntradaCache que caduca dentro de ttl milisegundos (nunca si es
+	 *         0)
+	 */
+	private MyEntry nuevaEntrada(K key, V value, long ttl) {
+		if (centinela == null)
+			return new MyEntry(key, value);
+		return new EntradaCache(key, value, caducidad(ttl));
+	}
+
+	private long caducidad(long ttl) {
+		return ttl == 0 ? SIN_CADUCIDAD : reloj.getAsLong() + ttl;
+	}
+
+	private boolean caducada(EntradaCache e) {
+		return e.expira != SIN_CADUCIDAD && e.expira <= reloj.getAsLong();
+	}
+
+	/**
+	 * 
+	 * @return valor de e, null si ha caducado (modo caché)
+	 */
+	private V vigente(MyEntry e) {
+		if (centinela != null && caducada((EntradaCache) e))
+			return null;
+		return e.value;
+	}
+
+	/**
+	 * Cambia el valor de la entrada e del árbol por el de nueva, que tiene la
+	 * misma clave y no se llega a insertar. En modo caché e pasa a ser la más
+	 * recientemente usada, con la caducidad de nueva y su nuevo peso
+	 * 
+	 * @return valor previo de e, null si había caducado
+	 */
+	private V sobrescribe(MyEntry e, MyEntry nueva) {
+		if (centinela == null)
+			return e.setValue(nueva.value);
+		EntradaCache c = (EntradaCache) e;
+		V r = vigente(c);
+		desenlaza(c);
+		c.setValue(nueva.value);
+		c.expira = ((EntradaCache) nueva).expira;
+		enlaza(c);
+		return r;
+	}
+
+	/**
+	 * Lectura del modo caché de la entrada e, ya encontrada: si ha caducado
+	 * se expulsa, y si no y usar, pasa a ser la más recientemente usada sin
+	 * volver a bajar
+	 * 
+	 * @return e, null si ha caducado
+	 */
+	private MyEntry usa(EntradaCache e, boolean usar) {
+		if (caducada(e)) {
+			expulsa(e);
+			return null;
+		}
+		if (usar)
+			toca(e);
+		return e;
+	}
+
+	/**
+	 * En modo caché, pasa e al final de la lista de uso (la más recientemente
+	 * usada), sin cambiar su caducidad
+	 */
+	private void toca(MyEntry e) {
+		if (centinela != null) {
+			EntradaCache c = (EntradaCache) e;
+			desengancha(c);
+			alFinal(c);
+		}
+	}
+
+	/**
+	 * Tras una escritura en modo caché: revisa pasos entradas en busca de
+	 * caducadas y expulsa las menos recientemente usadas mientras se supere
+	 * la capacidad
+	 */
+	private void ajustaCache(int pasos) {
+		if (centinela == null)
+			return;
+		barre(pasos);
+		while (capacidadCache > 0 && pesoTotal > capacidadCache)
+			expulsa(centinela.siguiente);
+	}
+
+	/**
+	 * Revisa como mucho pasos entradas de la lista de uso desde barrido,
+	 * volviendo al principio al llegar al final, y expulsa las caducadas
+	 * 
+	 * @return número de entradas expulsadas
+	 */
+	private int barre(int pasos) {
+		int r = 0;
+		long ahora = reloj.getAsLong();
+		for (int i = 0; i < pasos && centinela.siguiente != centinela; i++) {
+			if (barrido == centinela)
+				barrido = centinela.siguiente;
+			EntradaCache e = barrido;
+			barrido = e.siguiente;
+			if (e.expira <= ahora) {
+				expulsa(e);
+				r++;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Quita del árbol la entrada e (modo caché), en O(log n)
+	 */
+	private void expulsa(EntradaCache e) {
+		modificaciones++;
+		reparaBorde();
+		remove(raiz, e.getKey());
+		if (raiz == null)
+			raiz = new Node();
+	}
+
+	/**
+	 * Pone e al final de la lista de uso (la más recientemente usada) con su
+	 * peso actual
+	 */
+	private void enlaza(EntradaCache e) {
+		e.peso = pesaje == null ? 1 : Math.max(0,
+				pesaje.applyAsLong(e.getKey(), e.getValue()));
+		pesoTotal += e.peso;
+		alFinal(e);
+	}
+
+	private void desenlaza(EntradaCache e) {
+		desengancha(e);
+		pesoTotal -= e.peso;
+	}
+
+	/**
+	 * Vuelve a poner e en la lista entre las entradas que tenía a los lados al
+	 * desenlazarla, que deben seguir siendo contiguas (ver cambiaEnCache)
+	 */
+	private void reenlaza(EntradaCache e) {
+		e.anterior.siguiente = e;
+		e.siguiente.anterior = e;
+		pesoTotal += e.peso;
+	}
+
+	private void alFinal(EntradaCache e) {
+		e.anterior = centinela.anterior;
+		e.siguiente = centinela;
+		e.anterior.siguiente = e;
+		centinela.anterior = e;
+	}
+
+	/**
+	 * Saca e de la lista de uso sin cambiar sus enlaces (ver reenlaza)
+	 */
+	private void desengancha(EntradaCache e) {
+		if (barrido == e)
+			barrido = e.siguiente;
+		e.anterior.siguiente = e.siguiente;
+		e.siguiente.anterior = e.anterior;
+	}
+
+	/**
+	 * Comprueba en una única pasada la estructura del árbol: claves en orden
+	 * estricto y dentro del rango que marcan las claves de los antecesores,
+	 * entre t-1 y 2t-1 claves por nodo (salvo la raíz y, hasta reparaBorde,
+	 * el borde derecho), todas las hojas a la misma profundidad, subtreeSize
+	 * de cada nodo, size, los resúmenes y los hashes de Merkle válidos (ver
+	 * enableAggregates y enableMerkleHashes), que el filtro de Bloom no
+	 * descarta ninguna clave, la lista de uso del modo caché y que los
+	 * mensajes del modo buffer están ordenados, sólo en nodos internos y
+	 * dentro del rango de su nodo. No modifica el árbol ni vacía los buffers
+	 *
+	 * Se realiza en O(n)
+	 *
+	 * @throws AssertionError
+	 *             con el primer fallo encontrado
+	 */
+	public void checkInvariants() {
+		if (raiz == null) {
+			if (size != 0)
+				throw new AssertionError("Sin raíz con size = " + size);
+			return;
+		}
+		if (!raiz.leaf && raiz.numOfKeys == 0 && !bordeIrregular)
+			throw new AssertionError("Raíz interna sin claves");
+		// Profundidad de las hojas (-1 hasta ver la primera) y mensajes
+		int[] cuentas = { -1, 0 };
+		int n = compruebaNodo(raiz, null, null, 0, true, cuentas);
+		if (n != size)
+			throw new AssertionError("size = " + size + ", pero hay " + n
+					+ " entradas");
+		if (cuentas[1] != pendientes)
+			throw new AssertionError("pendientes = " + pendientes
+					+ ", pero hay " + cuentas[1] + " mensajes");
+		if (monoide != null)
+			compruebaResumen(raiz);
+		if (merkle)
+			compruebaHash(raiz);
+		if (centinela != null)
+			compruebaCache();
+	}
+
+	/**
+	 * Comprueba el subárbol de x (ver checkInvariants), cuyas claves deben
+	 * estar entre min y max (null si no hay límite)
+	 *
+	 * @param borde
+	 *            si x está en el borde derecho del árbol
+	 * @return número de entradas del subárbol
+	 */
+	private int compruebaNodo(Node x, K min, K max, int profundidad,
+			boolean borde, int[] cuentas) {
+		if (x.numOfKeys > 2 * t - 1)
+			throw new AssertionError("Nodo con " + x.numOfKeys + " claves");
+		if (x != raiz && x.numOfKeys < t - 1 && !(borde && bordeIrregular))
+			throw new AssertionError("Nodo con " + x.numOfKeys
+					+ " claves, menos de t-1");
+		K anterior = min;
+		for (int i = 0; i < x.numOfKeys; i++) {
+			if (x.entry[i] == null)
+				throw new AssertionError("Entrada null en la posición " + i);
+			K k = x.getEntry(i).key;
+			if (filtro != null && !filtro.puedeContener(k))
+				throw new AssertionError("Clave " + k
+						+ " descartada por el filtro de Bloom");
+			if (centinela != null && !enlazada(x.getEntry(i)))
+				throw new AssertionError("Entrada " + k
+						+ " fuera de la lista de uso");
+			if (anterior != null && anterior.compareTo(k) >= 0)
+				throw new AssertionError("Clave " + k + " desordenada tras "
+						+ anterior);
+			anterior = k;
+		}
+		if (max != null && anterior != null && anterior.compareTo(max) >= 0)
+			throw new AssertionError("Clave " + anterior
+					+ " fuera de rango, el máximo es " + max);
+
+		if (x.numOfMensajes > 0) {
+			if (x.leaf)
+				throw new AssertionError("Hoja con mensajes pendientes");
+			K previo = min;
+			for (int i = 0; i < x.numOfMensajes; i++) {
+				K k = x.getMensaje(i).key;
+				if (previo != null && previo.compareTo(k) >= 0)
+					throw new AssertionError("Mensaje " + k
+							+ " desordenado o fuera de rango");
+				previo = k;
+			}
+			if (max != null && previo.compareTo(max) >= 0)
+				throw new AssertionError("Mensaje " + previo
+						+ " fuera de rango, el máximo es " + max);
+			cuentas[1] += x.numOfMensajes;
+		}
+
+		int n = x.numOfKeys;
+		if (x.leaf) {
+			if (cuentas[0] == -1)
+				cuentas[0] = profundidad;
+			else if (cuentas[0] != profundidad)
+				throw new AssertionError("Hoja a profundidad " + profundidad
+						+ ", otras a " + cuentas[0]);
+		} else
+			for (int i = 0; i <= x.numOfKeys; i++) {
+				if (x.children[i] == null)
+					throw new AssertionError("Hijo null en la posición " + i);
+				n += compruebaNodo(x.getHijo(i),
+						i == 0 ? min : x.getEntry(i - 1).key,
+						i == x.numOfKeys ? max : x.getEntry(i).key,
+						profundidad + 1, borde && i == x.numOfKeys, cuentas);
+			}
+		if (x.subtreeSize != n)
+			throw new AssertionError("subtreeSize = " + x.subtreeSize
+					+ ", pero el subárbol tiene " + n + " entradas");
+		return n;
+	}
+
+	/**
+	 *
+	 * @return combinación de los valores del subárbol de x sin usar los
+	 *         resúmenes, comprobando los que son válidos
+	 */
+	private V compruebaResumen(Node x) {
+		V r = monoide.identity();
+		for (int i = 0; i < x.numOfKeys; i++) {
+			if (!x.leaf)
+				r = monoide.combine(r, compruebaResumen(x.getHijo(i)));
+			r = anadeValor(r, x.getEntry(i));
+		}
+		if (!x.leaf)
+			r = monoide.combine(r, compruebaResumen(x.getHijo(x.numOfKeys)));
+		if (x.conResumen
+				&& (r == null ? x.resumen != null : !r.equals(x.resumen)))
+			throw new AssertionError("Resumen " + x.resumen + ", debería ser "
+					+ r);
+		return r;
+	}
+
+	/**
+	 *
+	 * @return hash de Merkle del subárbol de x sin usar los de los nodos,
+	 *         comprobando los que son válidos
+	 */
+	private long compruebaHash(Node x) {
+		long h = 0;
+		for (int i = 0; i < x.numOfKeys; i++) {
+			if (!x.leaf)
+				h += compruebaHash(x.getHijo(i));
+			h += hashEntrada(x.getEntry(i));
+		}
+		if (!x.leaf)
+			h += compruebaHash(x.getHijo(x.numOfKeys));
+		if (x.conResumen && x.hash != h)
+			throw new AssertionError("Hash " + x.hash + ", debería ser " + h);
+		return h;
+	}
+
+	/**
+	 * Comprueba la lista de uso del modo caché: enlaces en los dos sentidos,
+	 * tantas entradas como el árbol (compruebaNodo comprueba que las del
+	 * árbol están enlazadas), la suma de los pesos y la posición del barrido
+	 */
+	private void compruebaCache() {
+		long peso = 0;
+		int n = 0;
+		boolean conBarrido = barrido == centinela;
+		for (EntradaCache e = centinela.siguiente; e != centinela; e = e
+				.siguiente) {
+			if (e.siguiente.anterior != e)
+				throw new AssertionError("Lista de uso mal enlazada tras "
+						+ e);
+			if (++n > size)
+				throw new AssertionError("Lista de uso con más de " + size
+						+ " entradas");
+			peso += e.peso;
+			conBarrido |= barrido == e;
+		}
+		if (n != size)
+			throw new AssertionError("Lista de uso con " + n
+					+ " entradas, size = " + size);
+		if (peso != pesoTotal)
+			throw new AssertionError("pesoTotal = " + pesoTotal
+					+ ", pero la lista pesa " + peso);
+		if (!conBarrido)
+			throw new AssertionError("Barrido fuera de la lista de uso");
+	}
+
+	private boolean enlazada(MyEntry e) {
+		if (!(e instanceof BTree.EntradaCache))
+			return false;
+		EntradaCache c = (EntradaCache) e;
+		return c.anterior != null && c.anterior.siguiente == c;
+	}
+
+	public void clear() {
+		this.raiz = new Node();
+		this.size = 0;
+		this.pendientes = 0;
+		this.modificaciones++;
+		this.bordeIrregular = false;
+		this.nivelCompactacion = 0;
+		this.cursorCompactacion = null;
+		if (filtro != null)
+			filtro.clear();
+		if (centinela != null)
+			reconstruyeCache();
+	}
+
+	public String toString() {
+		vaciaBuffers();
+		return raiz.toString();
+	}
+
+	/**
+	 * Activa el modo buffer (escritura optimizada, al estilo de los árboles
+	 * Bε): ingest y delete no bajan hasta las hojas, dejan un mensaje en el
+	 * buffer de la raíz, y cuando un buffer supera la capacidad sus mensajes
+	 * bajan por lotes un nivel, repartidos entre los hijos. Cada nodo se
+	 * visita así una vez por lote en lugar de una vez por escritura.
+	 * 
+	 * get y containsKey consultan los mensajes del camino de búsqueda (sin
+	 * usar el filtro de Bloom mientras haya mensajes pendientes). put, remove
+	 * y el resto de operaciones vacían antes todos los buffers, así que
+	 * siguen devolviendo los valores previos como en java.util.Map. No se
+	 * puede usar con el modo caché
+	 * 
+	 * @param capacidad
+	 *            número máximo de mensajes en el buffer de cada nodo interno
+	 * @throws IllegalArgumentException
+	 *             si capacidad es menor que 1
+	 * @throws IllegalStateException
+	 *             si el modo caché está activado
+	 */
+	public void enableWriteBuffer(int capacidad) {
+		if (capacidad < 1)
+			throw new IllegalArgumentException(
+					"La capacidad del buffer debe ser al menos 1");
+		if (centinela != null)
+			throw new IllegalStateException(
+					"El modo buffer no se puede usar con el modo caché");
+		if (capacidad < capacidadBuffer)
+			vaciaBuffers();
+		reparaBorde();
+		capacidadBuffer = capacidad;
+	}
+
+	/**
+	 * Desactiva el modo buffer, aplicando antes los mensajes pendientes
+	 */
+	public void disableWriteBuffer() {
+		vaciaBuffers();
+		capacidadBuffer = 0;
+	}
+
+	/**
+	 * Aplica todos los mensajes pendientes del modo buffer. No es necesario
+	 * para leer, sólo permite elegir cuándo se hace el trabajo
+	 */
+	public void flushWriteBuffer() {
+		vaciaBuffers();
+	}
+
+	/**
+	 * Asocia value a key como put, pero sin devolver el valor previo. En modo
+	 * buffer (ver enableWriteBuffer) se encola un mensaje y se aplica más
+	 * tarde; si no, es un put normal
+	 * 
+	 * Se realiza en O(logn), amortizado O((logn)/B) accesos a nodo en modo
+	 * buffer, siendo B el número de mensajes por lote
+	 */
+	public void ingest(K key, V value) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (capacidadBuffer == 0) {
+			put(key, value);
+			return;
+		}
+		encola(new Mensaje(key, value, false));
+		compruebaFiltro();
+	}
+
+	/**
+	 * Borra key como remove, pero sin devolver el valor previo ni comprobar
+	 * si existía. En modo buffer (ver enableWriteBuffer) se encola un mensaje
+	 * y se aplica más tarde; si no, es un remove normal
+	 * 
+	 * Se realiza en O(logn), amortizado O((logn)/B) accesos a nodo en modo
+	 * buffer, siendo B el número de mensajes por lote
+	 */
+	public void delete(K key) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (capacidadBuffer == 0) {
+			remove(key);
+			return;
+		}
+		encola(new Mensaje(key, null, true));
+	}
+
+	/**
+	 * Activa un filtro de Bloom (por bloques y con contadores, ver
+	 * CountingBloomFilter) que get y containsKey consultan antes de buscar: la
+	 * mayoría de las claves que no están se descartan mirando una única línea
+	 * de caché, sin recorrer el árbol. Se mantiene al insertar y borrar, y se
+	 * reconstruye solo cuando el árbol crece por encima del doble de su
+	 * capacidad
+	 * 
+	 * @param capacidad
+	 *            número de claves previsto
+	 */
+	public void enableBloomFilter(int capacidad) {
+		vaciaBuffers();
+		filtro = new CountingBloomFilter(Math.max(capacidad, size));
+		if (raiz != null && size > 0)
+			anadeAlFiltro(raiz);
+	}
+
+	public void disableBloomFilter() {
+		filtro = null;
+	}
+
+	/**
+	 * 
+	 * @return el filtro de Bloom del árbol (para consultar sus estadísticas),
+	 *         null si no está activado
+	 */
+	public CountingBloomFilter bloomFilter() {
+		return filtro;
+	}
+
+	/**
+	 * Reconstruye el filtro de Bloom a partir de las claves del árbol,
+	 * eliminando los falsos positivos acumulados por los contadores saturados,
+	 * las copias de splitAt o las uniones de join
+	 */
+	public void rebuildBloomFilter() {
+		if (filtro == null)
+			return;
+		vaciaBuffers();
+		reconstruyeFiltro();
+	}
+
+	private void reconstruyeFiltro() {
+		filtro = new CountingBloomFilter(Math.max(filtro.capacity(), 2 * size));
+		if (raiz != null && size > 0)
+			anadeAlFiltro(raiz);
+	}
+
+	private void anadeAlFiltro(Node x) {
+		for (int i = 0; i < x.numOfKeys; i++) {
+			filtro.add(x.getEntry(i).key);
+			if (!x.leaf)
+				anadeAlFiltro(x.getHijo(i));
+		}
+		if (!x.leaf)
+			anadeAlFiltro(x.getHijo(x.numOfKeys));
+	}
+
+	/**
+	 * 
+	 * @return comparador utilizado para comparar claves
+	 */
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/**
+	 * 
+	 * @return la primera entrada del arbol (aquella con la clave más pequeña)
+	 */
+	public Entry<K, V> firstEntry() {
+		return isEmpty() ? null : exporta(firstKey(raiz));
+	}
+
+	private MyEntry firstKey(Node x) {
+		if (x.leaf)
+			return x.getEntry(0);
+		else
+			return firstKey(x.getHijo(0));
+	}
+
+	/**
+	 * 
+	 * @return la última entrada del arbol (aquella con la clave más grande)
+	 */
+	public Entry<K, V> lastEntry() {
+		return isEmpty() ? null : exporta(lastKey(raiz));
+	}
+
+	private MyEntry lastKey(Node x) {
+		if (x.leaf)
+			return x.getEntry(x.numOfKeys - 1);
+		else if (x.getHijo(x.numOfKeys).subtreeSize == 0)
+			// Hoja vacía del borde derecho (ver anadeAlFinal)
+			return x.getEntry(x.numOfKeys - 1);
+		else
+			return lastKey(x.getHijo(x.numOfKeys));
+	}
+
+	/**
+	 * 
+	 * @return la clave más pequeña del árbol
+	 * @throws NoSuchElementException
+	 *             si el árbol es vacío
+	 */
+	public K firstKey() {
+		return claveDe(firstEntry());
+	}
+
+	/**
+	 * 
+	 * @return la clave más grande del árbol
+	 * @throws NoSuchElementException
+	 *             si el árbol es vacío
+	 */
+	public K lastKey() {
+		return claveDe(lastEntry());
+	}
+
+	private static <K> K claveDe(Entry<K, ?> e) {
+		if (e == null)
+			throw new NoSuchElementException();
+		return e.getKey();
+	}
+
+	/**
+	 * Entrada en la posición i del orden de claves (desde 0), bajando con
+	 * subtreeSize
+	 * 
+	 * Se realiza en O(log n)
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             si i no está entre 0 y size-1
+	 */
+	Entry<K, V> entradaEn(int i) {
+		vaciaBuffers();
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Posición " + i + ", size = "
+					+ size);
+		Node x = raiz;
+		int j = 0;
+		while (true) {
+			// Antes de la entrada j de x están las del hijo j
+			int s = x.leaf ? 0 : x.getHijo(j).subtreeSize;
+			if (i < s) {
+				x = x.getHijo(j);
+				j = 0;
+			} else if (i == s)
+				return exporta(x.getEntry(j));
+			else {
+				i -= s + 1;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Número de entradas con clave menor que key (o igual, si inclusivo), es
+	 * decir, la posición de key en el orden de claves, bajando con
+	 * subtreeSize
+	 * 
+	 * Se realiza en O(t log n)
+	 */
+	int cuentaMenores(K key, boolean inclusivo) {
+		if (isEmpty())
+			return 0;
+		int r = 0;
+		Node x = raiz;
+		while (true) {
+			int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
+			boolean esta = pos >= 0;
+			// Entradas de x, y con ellas sus hijos a la izquierda, que
+			// quedan por debajo de key
+			int menores = esta ? (inclusivo ? pos + 1 : pos) : -(pos + 1);
+			r += menores;
+			if (x.leaf)
+				return r;
+			for (int i = 0; i < menores; i++)
+				r += x.getHijo(i).subtreeSize;
+			if (esta)
+				return inclusivo ? r : r + x.getHijo(pos).subtreeSize;
+			x = x.getHijo(menores);
+		}
+	}
+
+	/**
+	 * 
+	 * @return la entrada con la mayor clave estrictamente menor que key, null
+	 *         si no hay
+	 */
+	public Entry<K, V> lowerEntry(K key) {
+		return exporta(vecino(key, true, false));
+	}
+
+	public K lowerKey(K key) {
+		return clave(vecino(key, true, false));
+	}
+
+	/**
+	 * 
+	 * @return la entrada con la mayor clave menor o igual que key, null si no
+	 *         hay
+	 */
+	public Entry<K, V> floorEntry(K key) {
+		return exporta(vecino(key, true, true));
+	}
+
+	public K floorKey(K key) {
+		return clave(vecino(key, true, true));
+	}
+
+	/**
+	 * 
+	 * @return la entrada con la menor clave mayor o igual que key, null si no
+	 *         hay
+	 */
+	public Entry<K, V> ceilingEntry(K key) {
+		return exporta(vecino(key, false, true));
+	}
+
+	public K ceilingKey(K key) {
+		return clave(vecino(key, false, true));
+	}
+
+	/**
+	 * 
+	 * @return la entrada con la menor clave estrictamente mayor que key, null
+	 *         si no hay
+	 */
+	public Entry<K, V> higherEntry(K key) {
+		return exporta(vecino(key, false, false));
+	}
+
+	public K higherKey(K key) {
+		return clave(vecino(key, false, false));
+	}
+
+	/**
+	 * Como en java.util.TreeMap, las entradas que devuelven los métodos de
+	 * navegación son copias que no admiten setValue
+	 */
+	private Entry<K, V> exporta(MyEntry e) {
+		return e == null ? null : new AbstractMap.SimpleImmutableEntry<K, V>(
+				e.key, e.value);
+	}
+
+	private K clave(MyEntry e) {
+		return e == null ? null : e.key;
+	}
+
+	/**
+	 * Busca la entrada más cercana a key por debajo (menor) o por encima en
+	 * una única bajada desde la raíz, sin recursión. En cada nodo, el punto de
+	 * inserción que da Arrays.binarySearch (como en buscar) indica la entrada
+	 * vecina del nodo, que se toma como candidata, y el hijo por el que
+	 * seguir: las candidatas de los niveles inferiores están siempre más
+	 * cerca de key que las de los superiores
+	 * 
+	 * @param menor
+	 *            si se busca por debajo de key (floor y lower) o por encima
+	 *            (ceiling y higher)
+	 * @param inclusivo
+	 *            si vale la propia key (floor y ceiling)
+	 * @return la entrada vecina, null si no hay
+	 */
+	private MyEntry vecino(K key, boolean menor, boolean inclusivo) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		vaciaBuffers();
+		if (raiz == null || size == 0)
+			return null;
+		MyEntry r = null;
+		Node x = raiz;
+		while (true) {
+			int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
+			int hijo;
+			if (pos >= 0) {
+				if (inclusivo)
+					return x.getEntry(pos);
+				// Lo siguiente por debajo (encima) está en el hijo a la
+				// izquierda (derecha) de key, o es la entrada anterior
+				// (siguiente) de x si el hijo no existe
+				hijo = menor ? pos : pos + 1;
+				pos = menor ? pos - 1 : pos + 1;
+			} else {
+				pos = -(pos + 1);
+				hijo = pos;
+				if (menor)
+					pos--;
+			}
+			if (pos >= 0 && pos < x.numOfKeys)
+				r = x.getEntry(pos);
+			if (x.leaf)
+				return r;
+			// Disk read
+			x = x.getHijo(hijo);
+		}
+	}
+
+	/**
+	 * Quita y devuelve la entrada con la clave más pequeña
+	 * 
+	 * Se realiza en una única bajada, O(logn)
+	 * 
+	 * @return la entrada eliminada, null si el árbol es vacío
+	 */
+	public Entry<K, V> pollFirstEntry() {
+		return exporta(quitaExtremo(true));
+	}
+
+	/**
+	 * Quita y devuelve la entrada con la clave más grande
+	 * 
+	 * Se realiza en una única bajada, O(logn)
+	 * 
+	 * @return la entrada eliminada, null si el árbol es vacío
+	 */
+	public Entry<K, V> pollLastEntry() {
+		return exporta(quitaExtremo(false));
+	}
+
+	private MyEntry quitaExtremo(boolean primero) {
+		if (isEmpty())
+			return null;
+		reparaBorde();
+		modificaciones++;
+		MyEntry r = quitaExtremo(raiz, primero);
+		if (raiz == null)
+			raiz = new Node();
+		return r;
+	}
+
+	/**
+	 * Quita la primera o la última entrada del subárbol de x, bajando siempre
+	 * por el hijo del extremo y preparándolo como en remove, sin comparar
+	 * claves
+	 */
+	private MyEntry quitaExtremo(Node x, boolean primero) {
+		MyEntry r;
+		if (x.leaf) {
+			int pos = primero ? 0 : x.numOfKeys - 1;
+			r = x.getEntry(pos);
+			borraDeHoja(x, pos);
+		} else
+			r = quitaExtremo(preparaHijo(x, primero ? 0 : x.numOfKeys),
+					primero);
+		x.subtreeSize--;
+		x.conResumen = false;
+		if (x == raiz && x.numOfKeys == 0)
+			raiz = x.getHijo(0);
+		return r;
+	}
+
+	/**
+	 * Quita y devuelve la primera entrada a partir de desde (en orden
+	 * decreciente si descendente), sin pasar de hasta: pollFirstEntry y
+	 * pollLastEntry de las vistas de rango
+	 * 
+	 * Se realiza en una única bajada, preparando los hijos como en remove, en
+	 * lugar de buscar la entrada y volver a bajar para borrarla, O(logn)
+	 * 
+	 * @param desde
+	 *            null para empezar por el extremo
+	 * @param hasta
+	 *            null si no hay límite
+	 * @return la entrada eliminada, null si no hay ninguna en el rango
+	 */
+	Entry<K, V> quitaPrimera(K desde, boolean desdeInclusivo, K hasta,
+			boolean hastaInclusivo, boolean descendente) {
+		if (isEmpty())
+			return null;
+		reparaBorde();
+		modificaciones++;
+		MyEntry r = quitaPrimera(raiz, desde, desdeInclusivo, hasta,
+				hastaInclusivo, descendente, null, 0);
+		if (raiz == null)
+			raiz = new Node();
+		return exporta(r);
+	}
+
+	/**
+	 * Quita la primera entrada del subárbol de x a partir de desde (ver
+	 * quitaPrimera). Se baja por el hijo donde estaría desde; si al llegar a
+	 * la hoja no hay ninguna entrada a partir de desde, la primera es la
+	 * entrada del antecesor más cercano al otro lado del camino, que se
+	 * sustituye por su vecina de la hoja, como en removeExisting pero sin
+	 * volver a bajar
+	 * 
+	 * @param antecesor
+	 *            nodo con esa entrada, null si no hay
+	 * @param separador
+	 *            posición de la entrada en antecesor
+	 */
+	private MyEntry quitaPrimera(Node x, K desde, boolean desdeInclusivo,
+			K hasta, boolean hastaInclusivo, boolean descendente,
+			Node antecesor, int separador) {
+		// Posición de la primera entrada de x a partir de desde
+		int pos;
+		if (desde == null)
+			pos = descendente ? x.numOfKeys - 1 : 0;
+		else {
+			pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, desde);
+			if (pos < 0)
+				pos = descendente ? -(pos + 1) - 1 : -(pos + 1);
+			else if (!desdeInclusivo)
+				pos += descendente ? -1 : 1;
+		}
+		MyEntry r = null;
+		if (x.leaf) {
+			if (pos >= 0 && pos < x.numOfKeys) {
+				if (noPasa(x.getEntry(pos).key, hasta, hastaInclusivo,
+						descendente)) {
+					r = x.getEntry(pos);
+					borraDeHoja(x, pos);
+				}
+			} else if (antecesor != null
+					&& noPasa(antecesor.getEntry(separador).key, hasta,
+							hastaInclusivo, descendente)) {
+				// La vecina es la última (o la primera) entrada de la hoja,
+				// que tiene al menos t
+				r = antecesor.getEntry(separador);
+				int extremo = descendente ? 0 : x.numOfKeys - 1;
+				MyEntry sube = x.getEntry(extremo);
+				borraDeHoja(x, extremo);
+				cambiaEnFiltro(r, sube);
+				cambiaEnCache(r, sube);
+				antecesor.entry[separador] = sube;
+			}
+		} else {
+			Node y = preparaHijo(x, descendente ? pos + 1 : pos);
+			// preparaHijo ha podido mover y, la entrada al otro lado es la
+			// de su nueva posición
+			int j = 0;
+			while (x.children[j] != y)
+				j++;
+			if (descendente ? j > 0 : j < x.numOfKeys) {
+				antecesor = x;
+				separador = descendente ? j - 1 : j;
+			}
+			r = quitaPrimera(y, desde, desdeInclusivo, hasta, hastaInclusivo,
+					descendente, antecesor, separador);
+		}
+		if (r != null) {
+			x.subtreeSize--;
+			x.conResumen = false;
+		}
+		if (x == raiz && x.numOfKeys == 0)
+			raiz = x.getHijo(0);
+		return r;
+	}
+
+	/**
+	 * 
+	 * @return true si key no pasa de hasta (null si no hay límite) en el
+	 *         orden del recorrido
+	 */
+	private static <K extends Comparable<K>> boolean noPasa(K key, K hasta,
+			boolean inclusivo, boolean descendente) {
+		if (hasta == null)
+			return true;
+		int c = key.compareTo(hasta);
+		if (descendente)
+			c = -c;
+		return c < 0 || (c == 0 && inclusivo);
+	}
+
+	public Set<Entry<K, V>> entrySet() {
+		return new BTreeSubMap<K, V>(this, null, false, null, false, false)
+				.entrySet();
+	}
+
+	public Set<K> keySet() {
+		return navigableKeySet();
+	}
+
+	public NavigableSet<K> navigableKeySet() {
+		return new BTreeSubMap.KeySet<K>(this);
+	}
+
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	/**
+	 * 
+	 * @return vista del árbol en orden decreciente de clave. Los cambios en la
+	 *         vista se reflejan en el árbol y viceversa
+	 */
+	public NavigableMap<K, V> descendingMap() {
+		return new BTreeSubMap<K, V>(this, null, false, null, false, true);
+	}
+
+	/**
+	 * 
+	 * @return vista de las entradas con clave entre fromKey y toKey. Los
+	 *         cambios en la vista se reflejan en el árbol y viceversa
+	 */
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive,
+			K toKey, boolean toInclusive) {
+		if (fromKey == null || toKey == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (fromKey.compareTo(toKey) > 0)
+			throw new IllegalArgumentException("fromKey > toKey");
+		return new BTreeSubMap<K, V>(this, fromKey, fromInclusive, toKey,
+				toInclusive, false);
+	}
+
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		if (toKey == null)
+			throw new NullPointerException("La clave no puede ser null");
+		return new BTreeSubMap<K, V>(this, null, false, toKey, inclusive,
+				false);
+	}
+
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		if (fromKey == null)
+			throw new NullPointerException("La clave no puede ser null");
+		return new BTreeSubMap<K, V>(this, fromKey, inclusive, null, false,
+				false);
+	}
+
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	public SortedMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * 
+	 * @param desde
+	 *            clave desde la que empezar, null para empezar por un extremo
+	 * @param inclusivo
+	 *            si se empieza por la propia clave desde, si existe
+	 * @param descendente
+	 *            si se recorre en orden decreciente de clave
+	 * @return iterador sobre las entradas del árbol (ver Recorrido)
+	 */
+	Iterator<Entry<K, V>> recorrido(K desde, boolean inclusivo,
+			boolean descendente) {
+		return new Recorrido(desde, inclusivo, descendente);
+	}
+
+	/**
+	 * Recorrido en orden con una pila con el camino desde la raíz: cada paso
+	 * es O(1) amortizado, sin volver a bajar desde la raíz. En cada nivel se
+	 * guarda el nodo y la posición de la siguiente entrada a devolver de ese
+	 * nodo.
+	 * 
+	 * Si el árbol cambia de estructura (incluido un remove del propio
+	 * iterador), el recorrido se recoloca bajando desde la raíz hasta la
+	 * entrada siguiente a la última devuelta, en lugar de lanzar
+	 * ConcurrentModificationException. Las entradas que devuelve son las del
+	 * árbol (ver expone), setValue modifica su valor
+	 */
+	private class Recorrido implements Iterator<Entry<K, V>> {
+		private final K desde;
+		private final boolean inclusivo;
+		private final boolean descendente;
+		private Object[] nodos = new Object[8];
+		private int[] posiciones = new int[8];
+		private int altura;
+		private int version;
+		// Última entrada devuelta, null si aún no se ha devuelto ninguna
+		private MyEntry ultima;
+		private boolean borrable;
+
+		Recorrido(K desde, boolean inclusivo, boolean descendente) {
+			this.desde = desde;
+			this.inclusivo = inclusivo;
+			this.descendente = descendente;
+			vaciaBuffers();
+			coloca(desde, inclusivo);
+		}
+
+		private void coloca(K key, boolean incluida) {
+			altura = 0;
+			version = modificaciones;
+			if (raiz == null || size == 0)
+				return;
+			Node x = raiz;
+			if (key == null) {
+				bajaExtremo(x);
+				return;
+			}
+			while (true) {
+				int pos = Arrays.binarySearch(x.entry, 0, x.numOfKeys, key);
+				if (pos >= 0) {
+					if (incluida) {
+						apila(x, pos);
+						return;
+					}
+					apila(x, descendente ? pos - 1 : pos + 1);
+					if (!x.leaf)
+						bajaExtremo(x.getHijo(descendente ? pos : pos + 1));
+					return;
+				}
+				pos = -(pos + 1);
+				apila(x, descendente ? pos - 1 : pos);
+				if (x.leaf)
+					return;
+				x = x.getHijo(pos);
+			}
+		}
+
+		/**
+		 * Apila el camino desde x hasta su primera (última si es descendente)
+		 * entrada
+		 */
+		private void bajaExtremo(Node x) {
+			while (true) {
+				apila(x, descendente ? x.numOfKeys - 1 : 0);
+				if (x.leaf)
+					return;
+				x = x.getHijo(descendente ? x.numOfKeys : 0);
+			}
+		}
+
+		private void apila(Node x, int pos) {
+			if (altura == nodos.length) {
+				nodos = Arrays.copyOf(nodos, 2 * altura);
+				posiciones = Arrays.copyOf(posiciones, 2 * altura);
+			}
+			nodos[altura] = x;
+			posiciones[altura++] = pos;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Node cima() {
+			return (BTree<K, V>.Node) nodos[altura - 1];
+		}
+
+		@Override
+		public boolean hasNext() {
+			vaciaBuffers();
+			if (version != modificaciones) {
+				if (ultima == null)
+					coloca(desde, inclusivo);
+				else
+					coloca(ultima.key, false);
+			}
+			// Desapilar los nodos ya recorridos
+			while (altura > 0) {
+				int pos = posiciones[altura - 1];
+				if (pos >= 0 && pos < cima().numOfKeys)
+					return true;
+				nodos[--altura] = null;
+			}
+			return false;
+		}
+
+		@Override
+		public Entry<K, V> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Node x = cima();
+			int pos = posiciones[altura - 1];
+			ultima = x.getEntry(pos);
+			borrable = true;
+			posiciones[altura - 1] = descendente ? pos - 1 : pos + 1;
+			if (!x.leaf)
+				bajaExtremo(x.getHijo(descendente ? pos : pos + 1));
+			return expone(ultima);
+		}
+
+		@Override
+		public void remove() {
+			if (!borrable)
+				throw new IllegalStateException();
+			borrable = false;
+			BTree.this.remove(ultima.key);
+		}
+	}
+
+	/**
+	 * Separa el árbol en dos en O(log n): uno con las entradas de clave menor
+	 * que key y otro con las de clave mayor o igual. Este árbol queda vacío
+	 * 
+	 * @param key
+	 *            clave por la que se separa
+	 * @return array con los dos árboles, el de claves menores en la posición 0
+	 */
+	@SuppressWarnings("unchecked")
+	public BTree<K, V>[] splitAt(K key) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		vaciaBuffers();
+		reparaBorde();
+		BTree<K, V> izquierda = new BTree<K, V>(t, valueToKey);
+		BTree<K, V> derecha = new BTree<K, V>(t, valueToKey);
+		if (raiz != null && size > 0) {
+			// parte vuelve a insertar con une entradas que no salen del
+			// árbol: no se añaden otra vez al filtro
+			CountingBloomFilter f = filtro;
+			filtro = null;
+			Object[] partes = parte(raiz, altura(raiz), key, new int[2]);
+			filtro = f;
+			izquierda.asigna(normaliza((Node) partes[0]));
+			derecha.asigna(normaliza((Node) partes[1]));
+		}
+		if (filtro != null) {
+			// El filtro sirve para cada mitad (puede dar más falsos positivos,
+			// pero nunca falsos negativos) hasta reconstruirlo
+			izquierda.filtro = filtro;
+			derecha.filtro = filtro.copy();
+		}
+		// Los resúmenes de los nodos que no se han tocado siguen siendo
+		// válidos
+		izquierda.monoide = monoide;
+		derecha.monoide = monoide;
+		izquierda.merkle = merkle;
+		derecha.merkle = merkle;
+		izquierda.codecClaves = derecha.codecClaves = codecClaves;
+		izquierda.codecValores = derecha.codecValores = codecValores;
+		suelta();
+		return (BTree<K, V>[]) new BTree<?, ?>[] { izquierda, derecha };
+	}
+
+	/**
+	 * Une en O(log n) dos árboles del mismo grado, siendo todas las claves de
+	 * left menores que todas las de right. Los nodos de right pasan a left,
+	 * que es el árbol resultante, y right queda vacío
+	 * 
+	 * @param left
+	 *            árbol con las claves menores
+	 * @param right
+	 *            árbol con las claves mayores
+	 * @return left, con las entradas de los dos árboles
+	 * @throws IllegalArgumentException
+	 *             si los grados son distintos o los rangos de claves se
+	 *             solapan
+	 */
+	public static <K extends Comparable<K>, V> BTree<K, V> join(
+			BTree<K, V> left, BTree<K, V> right) {
+		if (left.t != right.t)
+			throw new IllegalArgumentException(
+					"Los árboles deben tener el mismo grado");
+		left.vaciaBuffers();
+		right.vaciaBuffers();
+		left.reparaBorde();
+		right.reparaBorde();
+		if (right.raiz == null || right.size == 0)
+			return left;
+		if (left.centinela != null)
+			left.enlazaMenosRecientes(right);
+		if (left.raiz != null && left.size > 0) {
+			BTree<K, V>.MyEntry sep = left.lastKey(left.raiz);
+			if (sep.compareTo(right.firstKey(right.raiz).key) >= 0)
+				throw new IllegalArgumentException(
+						"Las claves de left deben ser menores que las de right");
+			// La entrada más grande de left separa los dos árboles. No sale
+			// del árbol, así que se quita y se vuelve a colgar sin tocar el
+			// filtro ni la lista de uso
+			CountingBloomFilter filtro = left.filtro;
+			BTree<K, V>.EntradaCache centinela = left.centinela;
+			left.filtro = null;
+			left.centinela = null;
+			left.remove(left.raiz, sep.key);
+			left.asigna(left.une(left.raiz, left.altura(left.raiz), sep,
+					right.raiz, right.altura(right.raiz), new int[1], 0));
+			left.filtro = filtro;
+			left.centinela = centinela;
+		} else
+			left.asigna(right.raiz);
+		if (left.filtro != null
+				&& (right.filtro == null || !left.filtro.addAll(right.filtro)))
+			left.reconstruyeFiltro();
+		if (left.monoide != null && left.monoide != right.monoide
+				|| left.merkle
+				&& (!right.merkle || left.codecClaves != right.codecClaves
+						|| left.codecValores != right.codecValores))
+			// Los resúmenes de los nodos de right son de otro monoide, o no
+			// tienen hash o es de otra codificación
+			left.recalculaResumenes(left.raiz);
+		right.suelta();
+		left.ajustaCache(0);
+		return left;
+	}
+
+	/**
+	 * join en modo caché: pone las entradas de otro, antes de colgar sus
+	 * nodos, al principio de la lista de uso (las menos recientemente
+	 * usadas), sin recorrer las de este árbol
+	 */
+	private void enlazaMenosRecientes(BTree<K, V> otro) {
+		EntradaCache ultima = centinela.anterior;
+		if (otro.centinela == null) {
+			// Cambian las entradas de los nodos de otro
+			otro.modificaciones++;
+			enlazaSubarbol(otro.raiz, caducidad(ttlCache));
+		} else if (otro.centinela.siguiente != otro.centinela) {
+			// Se empalma la lista de otro al final, con sus pesos o con los
+			// de este árbol
+			EntradaCache primera = otro.centinela.siguiente;
+			primera.anterior = centinela.anterior;
+			primera.anterior.siguiente = primera;
+			centinela.anterior = otro.centinela.anterior;
+			centinela.anterior.siguiente = centinela;
+			if (pesaje == otro.pesaje)
+				pesoTotal += otro.pesoTotal;
+			else
+				for (EntradaCache e = primera; e != centinela; e = e.siguiente) {
+					e.peso = pesaje == null ? 1 : Math.max(0,
+							pesaje.applyAsLong(e.getKey(), e.getValue()));
+					pesoTotal += e.peso;
+				}
+		}
+		if (ultima == centinela || ultima == centinela.anterior)
+			return;
+		// Las entradas nuevas están detrás de ultima: al mover el centinela
+		// justo delante de ellas pasan a ser las primeras de la lista
+		// circular, seguidas de las que ya había
+		EntradaCache primera = ultima.siguiente;
+		centinela.anterior.siguiente = centinela.siguiente;
+		centinela.siguiente.anterior = centinela.anterior;
+		centinela.anterior = ultima;
+		centinela.siguiente = primera;
+		ultima.siguiente = centinela;
+		primera.anterior = centinela;
+	}
+
+	/**
+	 * Deja vacío el árbol tras pasar sus nodos a otro (splitAt y join). Los
+	 * nodos, al ser de una clase interna, siguen apuntando a este árbol, así
+	 * que se cambia su filtro por uno mínimo (que crece al reconstruirse, ver
+	 * compruebaFiltro) para que no siga ocupando memoria
+	 */
+	private void suelta() {
+		if (filtro != null)
+			filtro = new CountingBloomFilter(1);
+		clear();
+	}
+
+	/**
+	 * Pone como raíz r (null si es el árbol vacío), ajustando el tamaño
+	 */
+	private void asigna(Node r) {
+		raiz = r == null ? new Node() : r;
+		size = raiz.subtreeSize;
+		modificaciones++;
+		bordeIrregular = false;
+	}
+
+	private ArrayList<K> inOrder(Node x) {
+		ArrayList<K> r = new ArrayList<K>();
+		if (!x.leaf)
+			r.addAll(inOrder(x.getHijo(0)));
+		for (int i = 0; i < x.numOfKeys; i++) {
+			r.add(x.getEntry(i).getKey());
+			if (!x.leaf)
+				r.addAll(inOrder(x.getHijo(i + 1)));
+		}
+		return r;
+	}
+
+	private void inOrderEntry(Node x, ArrayList<Entry<K, V>> r) {
+		for (int i = 0; i < x.numOfKeys; i++) {
+			if (!x.leaf)
+				inOrderEntry(x.getHijo(i), r);
+			r.add(expone(x.getEntry(i)));
+		}
+		if (!x.leaf)
+			inOrderEntry(x.getHijo(x.numOfKeys), r);
+	}
+
+	/**
+	 * 
+	 * @return ArrayList con las entradas del árbol en orden creciente de
+	 *         clave. Devuelve un array vacío si el árbol es vacío
+	 */
+	public ArrayList<Entry<K, V>> inOrderEntry() {
+		ArrayList<Entry<K, V>> r = new ArrayList<Entry<K, V>>(size());
+		if (!isEmpty())
+			inOrderEntry(raiz, r);
+		return r;
+	}
+
+	/**
+	 * 
+	 * @return ArrayList con el inOrden del árbol (claves en orden creciente).
+	 *         Devuelve un array vacío si el árbol es vacío (no devuelve null)
+	 */
+	public ArrayList<K> inOrderKey() {
+		if (isEmpty())
+			return new ArrayList<K>();
+		return inOrder(raiz);
+	}
+
+	/**
+	 * Construcción de un árbol de abajo a arriba a partir de entradas en orden
+	 * creciente de clave, sin descender desde la raíz por cada entrada. Los
+	 * nodos se llenan por completo (2t-1 claves) salvo los del borde derecho,
+	 * que se reequilibran con su hermano izquierdo al terminar
+	 */
+	private class CargaOrdenada {
+		// abiertos[0] es la hoja que se está llenando, abiertos[i] el nodo
+		// del nivel i que se está llenando
+		private final ArrayList<Node> abiertos = new ArrayList<Node>();
+		private int num;
+
+		CargaOrdenada() {
+			abiertos.add(new Node());
+		}
+
+		/**
+		 * Añade la entrada e, que debe ser mayor que todas las anteriores
+		 */
+		void anade(MyEntry e) {
+			Node hoja = abiertos.get(0);
+			if (hoja.numOfKeys == 2 * t - 1) {
+				// Hoja completa, e pasa a separarla de la siguiente
+				hoja.subtreeSize = hoja.numOfKeys;
+				sube(1, e, hoja);
+				abiertos.set(0, new Node());
+			} else
+				hoja.entry[hoja.numOfKeys++] = e;
+			num++;
+		}
+
+		/**
+		 * Añade al nodo abierto del nivel la clave e, con el nodo completo
+		 * izquierdo como hijo a su izquierda
+		 */
+		private void sube(int nivel, MyEntry e, Node izquierdo) {
+			if (nivel == abiertos.size()) {
+				Node s = new Node();
+				s.leaf = false;
+				abiertos.add(s);
+			}
+			Node x = abiertos.get(nivel);
+			if (x.numOfKeys == 2 * t - 1) {
+				// x se completa con su último hijo, e sube un nivel más
+				x.children[x.numOfKeys] = izquierdo;
+				x.subtreeSize = cuentaDe(x);
+				sube(nivel + 1, e, x);
+				Node s = new Node();
+				s.leaf = false;
+				abiertos.set(nivel, s);
+			} else {
+				x.children[x.numOfKeys] = izquierdo;
+				x.entry[x.numOfKeys++] = e;
+			}
+		}
+
+		/**
+		 * Cuelga cada nodo abierto como último hijo del nodo abierto del nivel
+		 * superior, reequilibra el borde derecho y cambia la raíz del árbol
+		 */
+		void termina() {
+			abiertos.get(0).subtreeSize = abiertos.get(0).numOfKeys;
+			for (int i = 1; i < abiertos.size(); i++) {
+				Node x = abiertos.get(i);
+				x.children[x.numOfKeys] = abiertos.get(i - 1);
+				x.subtreeSize = cuentaDe(x);
+			}
+			Node x = abiertos.get(abiertos.size() - 1);
+			raiz = x;
+			size = num;
+			modificaciones++;
+			bordeIrregular = false;
+			while (!x.leaf) {
+				Node y = x.getHijo(x.numOfKeys);
+				if (y.numOfKeys < t - 1)
+					reparte(x, x.numOfKeys - 1);
+				x = y;
+			}
+		}
+	}
+
+	/**
+	 * Reparte por igual las claves (y los hijos) de los hijos de x en las
+	 * posiciones pos y pos+1, junto con la clave de x que los separa
+	 * 
+	 * @param x
+	 *            nodo padre
+	 * @param pos
+	 *            posición de la clave de x que separa a los dos hijos
+	 */
+	private void reparte(Node x, int pos) {
+		Node y = x.getHijo(pos);
+		Node z = x.getHijo(pos + 1);
+		int c = y.numOfKeys + 1 + z.numOfKeys;
+		Object[] claves = new Object[c];
+		Object[] hijos = new Object[c + 1];
+		for (int i = 0; i < y.numOfKeys; i++)
+			claves[i] = y.entry[i];
+		claves[y.numOfKeys] = x.entry[pos];
+		for (int i = 0; i < z.numOfKeys; i++)
+			claves[y.numOfKeys + 1 + i] = z.entry[i];
+		if (!y.leaf) {
+			for (int i = 0; i <= y.numOfKeys; i++)
+				hijos[i] = y.children[i];
+			for (int i = 0; i <= z.numOfKeys; i++)
+				hijos[y.numOfKeys + 1 + i] = z.children[i];
+		}
+
+		int a = (c - 1) / 2;
+		Arrays.fill(y.entry, null);
+		Arrays.fill(z.entry, null);
+		for (int i = 0; i < a; i++)
+			y.entry[i] = claves[i];
+		x.entry[pos] = claves[a];
+		for (int i = a + 1; i < c; i++)
+			z.entry[i - a - 1] = claves[i];
+		if (!y.leaf) {
+			Arrays.fill(y.children, null);
+			Arrays.fill(z.children, null);
+			for (int i = 0; i <= a; i++)
+				y.children[i] = hijos[i];
+			for (int i = a + 1; i <= c; i++)
+				z.children[i - a - 1] = hijos[i];
+		}
+		y.numOfKeys = a;
+		z.numOfKeys = c - a - 1;
+		y.subtreeSize = cuentaDe(y);
+		z.subtreeSize = cuentaDe(z);
+		y.conResumen = false;
+		z.conResumen = false;
 	}
 
 	/**
-	 * 
-	 * @return comparador utilizado para comparar claves
+	 * Codificación de claves o valores a bytes para los snapshots y los
+	 * hashes de Merkle
 	 */
-	public Comparator<? super K> comparator() {
-		return comparator;
+	public interface Codec<T> {
+		byte[] encode(T value);
+
+		T decode(byte[] bytes);
 	}
 
+	// Cabecera de los snapshots: "BTRE" y versión del formato
+	private static final int SNAPSHOT_MAGIC = 0x42545245;
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_BUFFER = 1 << 16;
+
 	/**
+	 * Escribe el árbol en el canal, en orden de clave. Formato: cabecera
+	 * (magic, versión, número de entradas), cada entrada como longitud y bytes
+	 * de la clave seguidos de longitud y bytes del valor (-1 si es null), y
+	 * al final el CRC32 de todo lo anterior
 	 * 
-	 * @return la primera entrada del arbol (aquella con la clave más pequeña)
+	 * @param out
+	 *            canal de salida bloqueante, no se cierra
+	 * @param keyCodec
+	 *            codificación de las claves
+	 * @param valueCodec
+	 *            codificación de los valores
+	 * @throws IOException
 	 */
-	public Entry<K, V> firstEntry() {
-		return isEmpty() ? null : firstKey(raiz);
+	public void writeSnapshot(WritableByteChannel out, Codec<K> keyCodec,
+			Codec<V> valueCodec) throws IOException {
+		vaciaBuffers();
+		Escritor w = new Escritor(out);
+		w.putInt(SNAPSHOT_MAGIC);
+		w.putInt(SNAPSHOT_VERSION);
+		w.putLong(size);
+		if (raiz != null && size > 0)
+			escribe(raiz, w, keyCodec, valueCodec);
+		w.termina();
 	}
 
-	private MyEntry firstKey(Node x) {
-		if (x.leaf)
-			return x.getEntry(0);
-		else
-			return firstKey(x.getHijo(0));
+	private void escribe(Node x, Escritor w, Codec<K> keyCodec,
+			Codec<V> valueCodec) throws IOException {
+		for (int i = 0; i < x.numOfKeys; i++) {
+			if (!x.leaf)
+				escribe(x.getHijo(i), w, keyCodec, valueCodec);
+			MyEntry e = x.getEntry(i);
+			w.putBytes(keyCodec.encode(e.key));
+			w.putBytes(e.value == null ? null : valueCodec.encode(e.value));
+		}
+		if (!x.leaf)
+			escribe(x.getHijo(x.numOfKeys), w, keyCodec, valueCodec);
 	}
 
 	/**
+	 * Sustituye el contenido del árbol por el de un snapshot escrito con
+	 * writeSnapshot. El árbol se construye de abajo a arriba con los nodos
+	 * llenos, sin insertar clave a clave
 	 * 
-	 * @return la última entrada del arbol (aquella con la clave más grande)
+	 * @param in
+	 *            canal de entrada bloqueante, no se cierra
+	 * @param keyCodec
+	 *            codificación de las claves
+	 * @param valueCodec
+	 *            codificación de los valores
+	 * @throws IOException
+	 *             si el snapshot no es válido (formato, versión, orden de
+	 *             claves, longitudes o checksum) o el canal no es
+	 *             bloqueante; en ese caso el árbol no se modifica
 	 */
-	public Entry<K, V> lastEntry() {
-		return isEmpty() ? null : lastKey(raiz);
-	}
+	public void readSnapshot(ReadableByteChannel in, Codec<K> keyCodec,
+			Codec<V> valueCodec) throws IOException {
+		Lector r = new Lector(in);
+		if (r.getInt() != SNAPSHOT_MAGIC)
+			throw new IOException("Formato de snapshot no válido");
+		int version = r.getInt();
+		if (version != SNAPSHOT_VERSION)
+			throw new IOException("Versión de snapshot no soportada: "
+					+ version);
+		long n = r.getLong();
+		if (n < 0 || n > Integer.MAX_VALUE)
+			throw new IOException("Número de entradas no válido: " + n);
 
-	private MyEntry lastKey(Node x) {
-		if (x.leaf)
-			return x.getEntry(x.numOfKeys - 1);
-		else
-			return lastKey(x.getHijo(x.numOfKeys));
+		CargaOrdenada carga = new CargaOrdenada();
+		K anterior = null;
+		for (long i = 0; i < n; i++) {
+			byte[] bytes = r.getBytes();
+			if (bytes == null)
+				throw new IOException("Snapshot con clave null");
+			K key = keyCodec.decode(bytes);
+			byte[] value = r.getBytes();
+			if (key == null || anterior != null
+					&& comparator.compare(anterior, key) >= 0)
+				throw new IOException("Snapshot con claves desordenadas");
+			carga.anade(new MyEntry(key, value == null ? null : valueCodec
+					.decode(value)));
+			anterior = key;
+		}
+		long crc = r.crc();
+		if (r.getLong() != crc)
+			throw new IOException("Checksum de snapshot incorrecto");
+
+		clear();
+		carga.termina();
+		if (filtro != null)
+			reconstruyeFiltro();
+		if (centinela != null) {
+			reconstruyeCache();
+			ajustaCache(0);
+		}
 	}
 
-	private ArrayList<K> inOrder(Node x) {
-		ArrayList<K> r = new ArrayList<K>();
-		if (!x.leaf)
-			r.addAll(inOrder(x.getHijo(0)));
-		for (int i = 0; i < x.numOfKeys; i++) {
-			r.add(x.getEntry(i).getKey());
-			if (!x.leaf)
-				r.addAll(inOrder(x.getHijo(i + 1)));
+	/**
+	 * Escritura con buffer de un snapshot, calculando el CRC32 de lo escrito
+	 */
+	private static class Escritor {
+		private final WritableByteChannel out;
+		private final ByteBuffer buf = ByteBuffer.allocate(SNAPSHOT_BUFFER);
+		private final CRC32 crc = new CRC32();
+
+		Escritor(WritableByteChannel out) {
+			this.out = out;
+		}
+
+		private void reserva(int n) throws IOException {
+			if (buf.remaining() < n)
+				vuelca();
+		}
+
+		private void vuelca() throws IOException {
+			buf.flip();
+			crc.update(buf.array(), 0, buf.limit());
+			escribeTodo();
+			buf.clear();
+		}
+
+		void putInt(int v) throws IOException {
+			reserva(4);
+			buf.putInt(v);
+		}
+
+		void putLong(long v) throws IOException {
+			reserva(8);
+			buf.putLong(v);
+		}
+
+		void putBytes(byte[] b) throws IOException {
+			if (b == null) {
+				putInt(-1);
+				return;
+			}
+			putInt(b.length);
+			int off = 0;
+			while (off < b.length) {
+				reserva(1);
+				int n = Math.min(buf.remaining(), b.length - off);
+				buf.put(b, off, n);
+				off += n;
+			}
+		}
+
+		/**
+		 * Escribe el CRC32 de todo lo anterior y vacía el buffer
+		 */
+		void termina() throws IOException {
+			vuelca();
+			buf.putLong(crc.getValue());
+			buf.flip();
+			escribeTodo();
+		}
+
+		private void escribeTodo() throws IOException {
+			while (buf.hasRemaining())
+				if (out.write(buf) == 0)
+					throw new IOException("El canal debe ser bloqueante");
 		}
-		return r;
 	}
 
 	/**
-	 * 
-	 * @return ArrayList con el inOrden del árbol (claves en orden creciente).
-	 *         Devuelve un array vacío si el árbol es vacío (no devuelve null)
+	 * Lectura con buffer de un snapshot, calculando el CRC32 de lo leído
 	 */
-	public ArrayList<K> inOrderKey() {
-		if (isEmpty())
-			return new ArrayList<K>();
-		return inOrder(raiz);
+	private static class Lector {
+		private final ReadableByteChannel in;
+		private final ByteBuffer buf = ByteBuffer.allocate(SNAPSHOT_BUFFER);
+		private final CRC32 crc = new CRC32();
+
+		Lector(ReadableByteChannel in) {
+			this.in = in;
+			buf.flip();
+		}
+
+		/**
+		 * Asegura que haya al menos n bytes en el buffer. Una lectura que no
+		 * devuelve nada es un canal no bloqueante sin datos: se rechaza en
+		 * lugar de esperar activamente
+		 */
+		private void necesita(int n) throws IOException {
+			if (n > buf.capacity())
+				throw new IOException("Lectura mayor que el buffer: " + n);
+			if (buf.remaining() >= n)
+				return;
+			buf.compact();
+			while (buf.position() < n) {
+				int leidos = in.read(buf);
+				if (leidos < 0)
+					throw new IOException("Snapshot incompleto");
+				if (leidos == 0)
+					throw new IOException("El canal debe ser bloqueante");
+			}
+			buf.flip();
+		}
+
+		int getInt() throws IOException {
+			necesita(4);
+			crc.update(buf.array(), buf.position(), 4);
+			return buf.getInt();
+		}
+
+		long getLong() throws IOException {
+			necesita(8);
+			crc.update(buf.array(), buf.position(), 8);
+			return buf.getLong();
+		}
+
+		byte[] getBytes() throws IOException {
+			int len = getInt();
+			if (len == -1)
+				return null;
+			if (len < 0)
+				throw new IOException("Longitud no válida: " + len);
+			// El array crece con lo leído: una longitud dañada acaba en
+			// "Snapshot incompleto" sin reservar memoria de golpe
+			byte[] b = new byte[Math.min(len, SNAPSHOT_BUFFER)];
+			int off = 0;
+			while (off < len) {
+				necesita(1);
+				if (off == b.length)
+					b = Arrays.copyOf(b, (int) Math.min(len, 2L * b.length));
+				int n = Math.min(buf.remaining(), b.length - off);
+				buf.get(b, off, n);
+				off += n;
+			}
+			crc.update(b, 0, len);
+			return b;
+		}
+
+		/**
+		 * @return CRC32 de todo lo leído hasta ahora
+		 */
+		long crc() {
+			return crc.getValue();
+		}
 	}
 
 	public static <T extends Comparable<? super T>> boolean isSorted(
@@ -819,7 +4668,22 @@ public class BTree<K extends Comparable<K>, V> {
 		return true;
 	}
 
+	/**
+	 * Sin argumentos, ejecuta casosPrueba, valida y bench. Con "fuzz
+	 * [semillas] [operaciones] [primera semilla]" ejecuta las pruebas
+	 * diferenciales en paralelo (ver fuzz)
+	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("fuzz")) {
+			int semillas = args.length > 1 ? Integer.parseInt(args[1]) : 2 * Runtime
+					.getRuntime().availableProcessors();
+			int operaciones = args.length > 2 ? Integer.parseInt(args[2])
+					: 3000000;
+			long primera = args.length > 3 ? Long.parseLong(args[3]) : System
+					.currentTimeMillis();
+			fuzz(primera, semillas, operaciones);
+			return;
+		}
 		casosPrueba();
 		valida();
 		try {
@@ -913,7 +4777,30 @@ public class BTree<K extends Comparable<K>, V> {
 		pw.close();
 	}
 
-	private static int LIM = 60000;
+	private static int LIM = 300000;
+	// Cada cuántas operaciones se comprueba la estructura (checkInvariants es
+	// O(n), comprobar tras cada operación haría valida O(n^2))
+	private static final int COMPROBACION = 1000;
+	// Codificaciones de las pruebas (hashes de Merkle, snapshots y
+	// MappedBTree)
+	private static final Codec<Integer> ENTEROS = new Codec<Integer>() {
+		public byte[] encode(Integer value) {
+			return ByteBuffer.allocate(4).putInt(value).array();
+		}
+
+		public Integer decode(byte[] bytes) {
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+	};
+	private static final Codec<String> TEXTOS = new Codec<String>() {
+		public byte[] encode(String value) {
+			return value.getBytes(StandardCharsets.UTF_8);
+		}
+
+		public String decode(byte[] bytes) {
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
 
 	public static void valida() {
 		BTree<Integer, Integer> b = new BTree<Integer, Integer>(50);
@@ -924,17 +4811,14 @@ public class BTree<K extends Comparable<K>, V> {
 		for (int i = 0; i < LIM; i++) {
 			Integer n = rd.nextInt(LIM * 1000);
 			b.put(n, n);
-			if (!isSorted(b.inOrderKey()))
-				throw new Error(
-						"Error, no está ordenado durante la insercción!");
+			if (i % COMPROBACION == 0)
+				b.checkInvariants();
 
 			arrayPrueba.add(n);
 		}
 		System.out.println("Números insertados");
-		if (isSorted(b.inOrderKey()))
-			System.out.println("Ordenado");
-		else
-			throw new Error("Error, no está ordenado!");
+		b.checkInvariants();
+		System.out.println("Ordenado");
 
 		for (Iterator<Integer> iterator = arrayPrueba.iterator(); iterator
 				.hasNext();) {
@@ -963,9 +4847,8 @@ public class BTree<K extends Comparable<K>, V> {
 				if (b.containsKey(n)) {
 					throw new Error("Error, no se ha borrado" + n);
 				}
-				if (!isSorted(b.inOrderKey())) {
-					throw new Error("Error, borrar desordena" + i);
-				}
+				if (i % COMPROBACION == 0)
+					b.checkInvariants();
 				if (removed != null && !removed.equals(n)) {
 					throw new Error("Error, se ha borrado lo que no se quería "
 							+ i + "N = " + n + " REMOVED = " + removed);
@@ -981,11 +4864,10 @@ public class BTree<K extends Comparable<K>, V> {
 			Integer n = iterator.next();
 			pruebaMap.put(n, n);
 		}
+		b.checkInvariants();
 		b.putAll(pruebaMap);
-		if (isSorted(b.inOrderKey()))
-			System.out.println("Ordenado");
-		else
-			throw new Error("Error, no está ordenado!");
+		b.checkInvariants();
+		System.out.println("Ordenado");
 		i = 0;
 		for (Iterator<Integer> iterator = arrayPruebaBorra.iterator(); iterator
 				.hasNext();) {
@@ -995,5 +4877,1242 @@ public class BTree<K extends Comparable<K>, V> {
 			}
 		}
 		System.out.println("PutAll correcto");
+
+		System.out.println("Probando modo buffer");
+		b = new BTree<Integer, Integer>(4);
+		b.enableWriteBuffer(16);
+		pruebaMap = new TreeMap<Integer, Integer>();
+		boolean conMensajes = false;
+		for (i = 0; i < LIM; i++) {
+			Integer n = rd.nextInt(LIM / 10);
+			int op = rd.nextInt(100);
+			if (i % 10000 != 9999) {
+				if (op < 30) {
+					b.delete(n);
+					pruebaMap.remove(n);
+				} else {
+					// Algunos valores null, que cuentan como presentes
+					Integer v = op < 33 ? null : i;
+					b.ingest(n, v);
+					pruebaMap.put(n, v);
+				}
+			} else {
+				// De vez en cuando, para que los mensajes lleguen a las
+				// hojas: put y remove vacían los buffers y devuelven el valor
+				// previo
+				Integer e = op < 50 ? b.put(n, i) : b.remove(n);
+				Integer esperado = op < 50 ? pruebaMap.put(n, i) : pruebaMap
+						.remove(n);
+				if (e == null ? esperado != null : !e.equals(esperado))
+					throw new Error("Error, modo buffer incorrecto en put o "
+							+ "remove " + n);
+			}
+			n = rd.nextInt(LIM / 10);
+			Integer e = b.get(n);
+			if ((e == null ? pruebaMap.get(n) != null : !e.equals(pruebaMap
+					.get(n))) || b.containsKey(n) != pruebaMap.containsKey(n))
+				throw new Error("Error, modo buffer incorrecto " + n);
+			if (i % COMPROBACION == 0) {
+				b.checkInvariants();
+				conMensajes |= b.footprint().pendingMessages() > 0;
+			}
+		}
+		if (!conMensajes)
+			throw new Error("Error, el modo buffer no deja mensajes pendientes");
+		if (b.size() != pruebaMap.size()
+				|| !b.inOrderKey().equals(
+						new ArrayList<Integer>(pruebaMap.keySet())))
+			throw new Error("Error, modo buffer incorrecto al vaciar");
+		b.checkInvariants();
+		System.out.println("Modo buffer correcto");
+
+		System.out.println("Probando compute, merge, putIfAbsent y replace");
+		b = new BTree<Integer, Integer>(3);
+		b.enableBloomFilter(LIM / 100);
+		pruebaMap = new TreeMap<Integer, Integer>();
+		for (i = 0; i < LIM; i++) {
+			final Integer n = rd.nextInt(LIM / 10);
+			final int v = i;
+			Integer e, esperado;
+			switch (rd.nextInt(9)) {
+			case 0:
+				BiFunction<Integer, Integer, Integer> f = (k, x) -> x == null
+						|| x % 3 != 0 ? v : null;
+				e = b.compute(n, f);
+				esperado = pruebaMap.compute(n, f);
+				break;
+			case 1:
+				e = b.computeIfAbsent(n, k -> v);
+				esperado = pruebaMap.computeIfAbsent(n, k -> v);
+				break;
+			case 2:
+				BiFunction<Integer, Integer, Integer> g = (k, x) -> x % 2 == 0 ? null
+						: x + v;
+				e = b.computeIfPresent(n, g);
+				esperado = pruebaMap.computeIfPresent(n, g);
+				break;
+			case 3:
+				BiFunction<Integer, Integer, Integer> h = (x, y) -> x % 5 == 0 ? null
+						: x + y;
+				e = b.merge(n, v, h);
+				esperado = pruebaMap.merge(n, v, h);
+				break;
+			case 4:
+				e = b.putIfAbsent(n, v);
+				esperado = pruebaMap.putIfAbsent(n, v);
+				break;
+			case 5:
+				// Valores null, presentes como en TreeMap
+				Integer nuevo = rd.nextInt(4) == 0 ? null : v;
+				e = b.replace(n, nuevo);
+				esperado = pruebaMap.replace(n, nuevo);
+				break;
+			case 6:
+				e = b.put(n, null);
+				esperado = pruebaMap.put(n, null);
+				break;
+			default:
+				Integer viejo = rd.nextBoolean() ? pruebaMap.get(n) : rd
+						.nextBoolean() ? null : Integer.valueOf(0);
+				nuevo = rd.nextInt(4) == 0 ? null : v;
+				boolean hecho = b.replace(n, viejo, nuevo);
+				e = esperado = null;
+				if (hecho != pruebaMap.replace(n, viejo, nuevo))
+					throw new Error("Error, replace incorrecto " + n);
+			}
+			if (b.containsKey(n) != pruebaMap.containsKey(n))
+				throw new Error("Error, containsKey incorrecto " + n);
+			if (e == null ? esperado != null : !e.equals(esperado))
+				throw new Error("Error, compute incorrecto " + n);
+			if (i % COMPROBACION == 0)
+				b.checkInvariants();
+		}
+		if (b.size() != pruebaMap.size()
+				|| !b.inOrderKey().equals(
+						new ArrayList<Integer>(pruebaMap.keySet())))
+			throw new Error("Error, compute incorrecto al terminar");
+		if (!b.equals(pruebaMap))
+			throw new Error("Error, compute incorrecto al terminar");
+		System.out.println("compute, merge, putIfAbsent y replace correctos");
+
+		System.out.println("Probando join con filtros de Bloom");
+		for (int grado = 2; grado <= 5; grado++)
+			for (int n = 1; n <= 300; n += 37) {
+				BTree<Integer, Integer> izquierda = new BTree<Integer, Integer>(
+						grado);
+				BTree<Integer, Integer> derecha = new BTree<Integer, Integer>(
+						grado);
+				izquierda.enableBloomFilter(1000);
+				derecha.enableBloomFilter(1000);
+				for (i = 0; i < n; i++) {
+					izquierda.put(i, i);
+					derecha.put(n + i, n + i);
+				}
+				BTree<Integer, Integer> unido = BTree.join(izquierda, derecha);
+				unido.checkInvariants();
+				for (i = 0; i < 2 * n; i++)
+					if (!unido.containsKey(i) || unido.get(i) != i)
+						throw new Error("Error, join pierde la clave " + i
+								+ " del filtro (grado " + grado + ")");
+			}
+		System.out.println("Join con filtros de Bloom correcto");
+
+		System.out.println("Probando splitAt y join con todos los modos");
+		// Resúmenes, hashes de Merkle y filtro de Bloom (que comprueba
+		// checkInvariants) en el árbol y en cada mitad, y modo caché en la
+		// mitad izquierda en uno de cada dos join. Se parte por claves
+		// presentes, ausentes y fuera de rango, y las mitades se comparan con
+		// el TreeMap y con los hashes de rango de una réplica sin partir
+		Monoid<Integer> sumaEnteros = new Monoid<Integer>() {
+			public Integer identity() {
+				return 0;
+			}
+
+			public Integer combine(Integer a, Integer c) {
+				return a + c;
+			}
+		};
+		for (int grado = 2; grado <= 6; grado++)
+			for (int n : new int[] { 0, 1, 10, 1000, 20000 }) {
+				BTree<Integer, Integer> arbol = new BTree<Integer, Integer>(
+						grado);
+				BTree<Integer, Integer> sinPartir = new BTree<Integer, Integer>(
+						grado);
+				arbol.enableAggregates(sumaEnteros);
+				arbol.enableMerkleHashes(ENTEROS, ENTEROS);
+				arbol.enableBloomFilter(n / 4 + 1);
+				sinPartir.enableMerkleHashes(ENTEROS, ENTEROS);
+				TreeMap<Integer, Integer> esperado = new TreeMap<Integer, Integer>();
+				for (i = 0; i < n; i++) {
+					Integer k = rd.nextInt(4 * n), v = rd.nextInt(1000);
+					arbol.put(k, v);
+					sinPartir.put(k, v);
+					esperado.put(k, v);
+				}
+				for (int vuelta = 0; vuelta < 8; vuelta++) {
+					Integer corte;
+					if (vuelta == 0)
+						corte = -1;
+					else if (vuelta == 1)
+						corte = 4 * n + 1;
+					else if (vuelta % 2 == 0 && n > 0)
+						corte = esperado.ceilingKey(rd.nextInt(4 * n));
+					else
+						corte = rd.nextInt(4 * n + 1);
+					if (corte == null)
+						corte = 0;
+					BTree<Integer, Integer>[] partes = arbol.splitAt(corte);
+					SortedMap<Integer, Integer> izquierda = esperado
+							.headMap(corte), derecha = esperado.tailMap(corte);
+					for (int lado = 0; lado < 2; lado++) {
+						SortedMap<Integer, Integer> mitad = lado == 0 ? izquierda
+								: derecha;
+						partes[lado].checkInvariants();
+						if (!partes[lado].equals(mitad))
+							throw new Error("Error, splitAt por " + corte
+									+ " (grado " + grado + ", n " + n + ")");
+						int total = 0;
+						for (Integer w : mitad.values())
+							total += w;
+						compara(partes[lado].aggregate(), total,
+								"resumen tras splitAt");
+						compara(partes[lado].merkleHash(), lado == 0 ? sinPartir
+								.merkleHash(null, false, corte, false)
+								: sinPartir.merkleHash(corte, true, null, false),
+								"hash tras splitAt");
+					}
+					if (vuelta % 2 == 1)
+						partes[0].enableCache(0, 0);
+					arbol = BTree.join(partes[0], partes[1]);
+					arbol.checkInvariants();
+					if (!arbol.equals(esperado))
+						throw new Error("Error, join tras splitAt por " + corte
+								+ " (grado " + grado + ", n " + n + ")");
+					compara(arbol.merkleHash(), sinPartir.merkleHash(),
+							"hash tras join");
+					for (Integer k : esperado.keySet())
+						if (!arbol.bloomFilter().mightContain(k))
+							throw new Error("Error, join pierde la clave " + k
+									+ " del filtro");
+					arbol.disableCache();
+				}
+			}
+		System.out.println("SplitAt y join con todos los modos correctos");
+
+		System.out.println("Probando navegación");
+		for (i = 0; i < LIM; i++) {
+			Integer n = rd.nextInt(LIM / 10);
+			if (!equivalentes(b.floorEntry(n), pruebaMap.floorEntry(n))
+					|| !equivalentes(b.ceilingEntry(n),
+							pruebaMap.ceilingEntry(n))
+					|| !equivalentes(b.lowerEntry(n), pruebaMap.lowerEntry(n))
+					|| !equivalentes(b.higherEntry(n),
+							pruebaMap.higherEntry(n)))
+				throw new Error("Error, navegación incorrecta " + n);
+			int hasta = n + rd.nextInt(100);
+			if (!b.descendingMap().subMap(hasta, true, n, false)
+					.equals(pruebaMap.descendingMap().subMap(hasta, true, n, false)))
+				throw new Error("Error, subMap incorrecto " + n);
+			if (i % 4 == 0
+					&& !equivalentes(b.pollFirstEntry(),
+							pruebaMap.pollFirstEntry())
+					|| i % 4 == 1
+					&& !equivalentes(b.pollLastEntry(),
+							pruebaMap.pollLastEntry()))
+				throw new Error("Error, poll incorrecto " + n);
+			if (i % COMPROBACION == 0)
+				b.checkInvariants();
+		}
+		if (!b.equals(pruebaMap))
+			throw new Error("Error, navegación incorrecta al terminar");
+		System.out.println("Navegación correcta");
+
+		System.out.println("Probando inserciones al final");
+		b = new BTree<Integer, Integer>(3);
+		pruebaMap = new TreeMap<Integer, Integer>();
+		for (i = 0; i < LIM; i++) {
+			// Claves crecientes con alguna inserción desordenada y borrado
+			Integer n = rd.nextInt(10) == 0 ? rd.nextInt(i + 1) : i;
+			if (rd.nextInt(20) == 0) {
+				if (!equivalentes(b.pollLastEntry(), pruebaMap.pollLastEntry()))
+					throw new Error("Error, inserción al final incorrecta " + n);
+			} else {
+				Integer e = b.put(n, i), esperado = pruebaMap.put(n, i);
+				if (e == null ? esperado != null : !e.equals(esperado))
+					throw new Error("Error, inserción al final incorrecta " + n);
+			}
+			if (i % COMPROBACION == 0)
+				b.checkInvariants();
+		}
+		if (!b.equals(pruebaMap)
+				|| !b.lastEntry().equals(pruebaMap.lastEntry()))
+			throw new Error("Error, inserción al final incorrecta al terminar");
+		for (Iterator<Integer> iterator = arrayPruebaBorra.iterator(); iterator
+				.hasNext();) {
+			Integer n = iterator.next() % LIM;
+			if (!equivalentes(b.floorEntry(n), pruebaMap.floorEntry(n)))
+				throw new Error("Error, inserción al final incorrecta " + n);
+			b.remove(n);
+			pruebaMap.remove(n);
+		}
+		if (!b.equals(pruebaMap))
+			throw new Error("Error, borrado tras inserción al final incorrecto");
+		// Carga puramente secuencial: todas las hojas salvo la última quedan
+		// llenas y, con grado alto, la ocupación total pasa del 99%
+		for (int grado : new int[] { 3, 16 }) {
+			b = new BTree<Integer, Integer>(grado);
+			for (i = 0; i < LIM; i++)
+				b.put(i, i);
+			b.checkInvariants();
+			TreeFootprint huella = b.footprint();
+			if (huella.fillHistogram()[9] < huella.leaves() - 1)
+				throw new Error("Error, hojas sin llenar tras inserción al "
+						+ "final: " + huella);
+			if (grado == 16 && huella.fillFactor() < 0.99)
+				throw new Error("Error, ocupación baja tras inserción al "
+						+ "final: " + huella);
+		}
+		System.out.println("Inserciones al final correctas");
+
+		System.out.println("Probando compactación");
+		b = new BTree<Integer, Integer>(3);
+		pruebaMap = new TreeMap<Integer, Integer>();
+		for (i = 0; i < LIM; i++) {
+			Integer n = rd.nextInt();
+			b.put(n, i);
+			pruebaMap.put(n, i);
+		}
+		for (Iterator<Integer> iterator = pruebaMap.keySet().iterator(); iterator
+				.hasNext();) {
+			Integer n = iterator.next();
+			if (rd.nextInt(10) < 8) {
+				iterator.remove();
+				b.remove(n);
+			}
+		}
+		TreeFootprint antes = b.footprint();
+		int pasos = 0;
+		boolean terminado = false;
+		while (!terminado) {
+			terminado = b.compact(16);
+			// Se puede modificar el árbol entre dos llamadas
+			if (++pasos % 5 == 0) {
+				Integer n = rd.nextInt();
+				b.put(n, pasos);
+				pruebaMap.put(n, pasos);
+				n = pruebaMap.firstKey();
+				b.remove(n);
+				pruebaMap.remove(n);
+			}
+			b.checkInvariants();
+			if (!b.equals(pruebaMap))
+				throw new Error("Error, compactación incorrecta en el paso "
+						+ pasos);
+		}
+		TreeFootprint despues = b.footprint();
+		if (despues.entries() != pruebaMap.size()
+				|| despues.nodes() >= antes.nodes()
+				|| despues.fillFactor() <= antes.fillFactor())
+			throw new Error("Error, la compactación no reduce el árbol: "
+					+ antes + " -> " + despues);
+		System.out.println("Compactación correcta: " + antes + " -> "
+				+ despues);
+
+		System.out.println("Probando resúmenes por rango");
+		b = new BTree<Integer, Integer>(3);
+		pruebaMap = new TreeMap<Integer, Integer>();
+		b.enableAggregates(new Monoid<Integer>() {
+			public Integer identity() {
+				return 0;
+			}
+
+			public Integer combine(Integer a, Integer c) {
+				return a + c;
+			}
+		});
+		for (i = 0; i < LIM; i++) {
+			Integer n = rd.nextInt(LIM);
+			switch (rd.nextInt(4)) {
+			case 0:
+				b.remove(n);
+				pruebaMap.remove(n);
+				break;
+			case 1:
+				// Cambio de valor desde una entrada del recorrido
+				Iterator<Entry<Integer, Integer>> it = b.tailMap(n, true)
+						.entrySet().iterator();
+				if (it.hasNext()) {
+					Entry<Integer, Integer> e = it.next();
+					e.setValue(i);
+					pruebaMap.put(e.getKey(), i);
+				}
+				break;
+			default:
+				b.put(n, i);
+				pruebaMap.put(n, i);
+			}
+			if (i % 100 == 0) {
+				int desde = rd.nextInt(LIM), hasta = desde + rd.nextInt(LIM / 10);
+				int esperado = 0;
+				for (Integer v : pruebaMap.subMap(desde, hasta).values())
+					esperado += v;
+				if (b.aggregate(desde, hasta) != esperado)
+					throw new Error("Error, resumen incorrecto en [" + desde
+							+ ", " + hasta + ")");
+			}
+			if (i % COMPROBACION == 0)
+				b.checkInvariants();
+		}
+		b.checkInvariants();
+		int total = 0;
+		for (Integer v : pruebaMap.values())
+			total += v;
+		if (b.aggregate() != total)
+			throw new Error("Error, resumen total incorrecto");
+		System.out.println("Resúmenes por rango correctos");
+
+		System.out.println("Probando modo caché");
+		// Por número de entradas, contra un LinkedHashMap en orden de uso
+		final int CAPACIDAD = 1000;
+		b = new BTree<Integer, Integer>(3);
+		b.enableCache(CAPACIDAD, 0);
+		LinkedHashMap<Integer, Integer> lru = new LinkedHashMap<Integer, Integer>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<Integer, Integer> e) {
+				return size() > CAPACIDAD;
+			}
+		};
+		for (i = 0; i < LIM; i++) {
+			Integer n = rd.nextInt(4 * CAPACIDAD);
+			switch (rd.nextInt(7)) {
+			case 0:
+				compara(b.remove(n), lru.remove(n), "remove en modo caché");
+				break;
+			case 3:
+				compara(b.computeIfAbsent(n, k -> -k), lru.computeIfAbsent(n,
+						k -> -k), "computeIfAbsent en modo caché");
+				break;
+			case 4:
+				compara(b.putIfAbsent(n, -n), lru.putIfAbsent(n, -n),
+						"putIfAbsent en modo caché");
+				break;
+			case 1:
+				compara(b.get(n), lru.get(n), "get en modo caché");
+				break;
+			case 2:
+				compara(b.merge(n, 1, Integer::sum),
+						lru.merge(n, 1, Integer::sum), "merge en modo caché");
+				break;
+			default:
+				compara(b.put(n, i), lru.put(n, i), "put en modo caché");
+			}
+			if (i % COMPROBACION == 0) {
+				b.checkInvariants();
+				// Sin get, que cambiaría el orden de uso
+				compara(b.inOrderKey(), new ArrayList<Integer>(
+						new TreeSet<Integer>(lru.keySet())),
+						"claves en modo caché");
+			}
+		}
+
+		// Caducidades, con un reloj simulado
+		final long[] ahora = { 0 };
+		b = new BTree<Integer, Integer>(3);
+		b.reloj = () -> ahora[0];
+		b.enableCache(0, 100);
+		b.put(5000, 0, 0);
+		b.put(5001, 0, 1050);
+		for (i = 0; i < 1000; i++) {
+			// La clave i caduca en i / 10 + 100
+			b.put(i, i);
+			if (i % 10 == 9)
+				ahora[0]++;
+		}
+		ahora[0] = 150;
+		compara(b.get(0), null, "get de una entrada caducada");
+		compara(b.get(999), 999, "get de una entrada sin caducar");
+		compara(b.sweep(b.size()), 509, "entradas barridas");
+		compara(b.firstKey(), 510, "primera clave tras el barrido");
+		b.checkInvariants();
+		compara(b.put(600, 0), 600, "put sobre una entrada sin caducar");
+		ahora[0] = 1000;
+		compara(b.put(999, 0), null, "put sobre una entrada caducada");
+		compara(b.computeIfPresent(998, (k, v) -> v + 1), null,
+				"computeIfPresent sobre una entrada caducada");
+		while (b.sweep(100) > 0)
+			;
+		compara(b.inOrderKey(), Arrays.asList(999, 5000, 5001),
+				"claves tras caducar las de la caducidad por defecto");
+		ahora[0] = 1100;
+		compara(b.get(5001), null, "get con caducidad propia");
+		compara(b.get(5000), 0, "get de una entrada que no caduca");
+		b.checkInvariants();
+
+		// Por bytes, con el peso de los valores
+		final int PRESUPUESTO = 10000;
+		BTree<Integer, String> c = new BTree<Integer, String>(4);
+		c.enableBloomFilter(1000);
+		c.enableCache(PRESUPUESTO, (k, v) -> v.length(), 0);
+		for (i = 0; i < LIM; i++) {
+			Integer n = rd.nextInt(5000);
+			if (rd.nextInt(8) == 0) {
+				c.remove(n);
+				continue;
+			}
+			char[] valor = new char[1 + rd.nextInt(100)];
+			Arrays.fill(valor, 'x');
+			c.put(n, new String(valor));
+			if (c.get(n) == null)
+				throw new Error("Error, expulsada la entrada recién insertada "
+						+ n);
+			if (c.pesoTotal > PRESUPUESTO)
+				throw new Error("Error, peso " + c.pesoTotal
+						+ " por encima del presupuesto");
+			if (i % COMPROBACION == 0)
+				c.checkInvariants();
+		}
+		c.checkInvariants();
+
+		// containsKey no cambia el uso, y una entrada caducada que pasa el
+		// filtro de Bloom no es un falso positivo
+		b = new BTree<Integer, Integer>(3);
+		b.reloj = () -> ahora[0];
+		b.enableBloomFilter(100);
+		b.enableCache(3, 0);
+		b.put(1, 1);
+		b.put(2, 2, 10);
+		b.put(3, 3);
+		compara(b.containsKey(1), true, "containsKey en modo caché");
+		b.put(4, 4);
+		compara(b.inOrderKey(), Arrays.asList(2, 3, 4),
+				"expulsión tras containsKey");
+		ahora[0] += 10;
+		compara(b.containsKey(2), false, "containsKey de una caducada");
+		compara(b.bloomFilter().falsePositives(), 0L,
+				"falsos positivos por una entrada caducada");
+		b.checkInvariants();
+
+		// join: las entradas de right pasan a ser las menos recientemente
+		// usadas, en el orden de su lista si right está en modo caché y en
+		// orden de clave si no
+		for (boolean conCache : new boolean[] { false, true }) {
+			BTree<Integer, Integer> izquierda = new BTree<Integer, Integer>(3);
+			izquierda.enableCache(15, 0);
+			for (i = 0; i < 10; i++)
+				izquierda.put(i, i);
+			izquierda.get(0);
+			BTree<Integer, Integer> derecha = new BTree<Integer, Integer>(3);
+			if (conCache)
+				derecha.enableCache(0, 0);
+			for (i = 10; i < 20; i++)
+				derecha.put(i, i);
+			derecha.get(12);
+			b = BTree.join(izquierda, derecha);
+			b.checkInvariants();
+			// Sobran 5: las 5 primeras de la lista de right
+			List<Integer> esperadas = new ArrayList<Integer>();
+			for (i = 0; i < 20; i++)
+				if (i < 10 || i >= 15 || conCache && i == 12)
+					esperadas.add(i);
+			if (conCache)
+				esperadas.remove(Integer.valueOf(15));
+			compara(b.inOrderKey(), esperadas, "claves tras join en modo caché");
+			// Siguen las que quedan de right y después las de left, con 0
+			// como la más reciente
+			List<Integer> expulsadas = new ArrayList<Integer>();
+			for (i = 100; i < 115; i++) {
+				b.put(i, i);
+				for (Integer k : esperadas)
+					if (!b.containsKey(k) && !expulsadas.contains(k))
+						expulsadas.add(k);
+			}
+			List<Integer> orden = new ArrayList<Integer>(esperadas.subList(10,
+					15));
+			if (conCache) {
+				orden.remove(Integer.valueOf(12));
+				orden.add(12);
+			}
+			for (i = 1; i < 10; i++)
+				orden.add(i);
+			orden.add(0);
+			compara(expulsadas, orden, "orden de expulsión tras join");
+			b.checkInvariants();
+		}
+		System.out.println("Modo caché correcto");
+
+		System.out.println("Probando hashes de Merkle");
+		// Réplicas con las mismas entradas y distinta forma: otro grado y
+		// otro orden de inserción
+		b = new BTree<Integer, Integer>(3);
+		final BTree<Integer, Integer> replica = new BTree<Integer, Integer>(5);
+		b.enableMerkleHashes(ENTEROS, ENTEROS);
+		replica.enableMerkleHashes(ENTEROS, ENTEROS);
+		ArrayList<Integer> claves = new ArrayList<Integer>();
+		for (i = 0; i < LIM; i++)
+			claves.add(rd.nextInt(4 * LIM));
+		for (Integer n : claves)
+			b.put(n, n);
+		Collections.shuffle(claves, rd);
+		for (Integer n : claves)
+			replica.put(n, n);
+		compara(b.merkleHash(), replica.merkleHash(), "hash de réplicas iguales");
+		compara(b.diff(replica.merkleHash(), replica), new ArrayList<Integer>(),
+				"diff de réplicas iguales");
+		// Cambios en la réplica, que se consulta contando las peticiones
+		TreeSet<Integer> tocadas = new TreeSet<Integer>();
+		for (i = 0; i < 50; i++) {
+			Integer n = claves.get(rd.nextInt(claves.size()));
+			switch (rd.nextInt(4)) {
+			case 0:
+				replica.remove(n);
+				break;
+			case 1:
+				n = rd.nextInt(4 * LIM);
+				replica.put(n, -n);
+				break;
+			case 2:
+				// Cambio de valor desde una entrada del recorrido
+				Iterator<Entry<Integer, Integer>> it = replica.tailMap(n, true)
+						.entrySet().iterator();
+				if (it.hasNext()) {
+					Entry<Integer, Integer> e = it.next();
+					e.setValue(-1);
+					n = e.getKey();
+				}
+				break;
+			default:
+				replica.put(n, n + 1);
+			}
+			tocadas.add(n);
+		}
+		ArrayList<Integer> distintas = new ArrayList<Integer>();
+		for (Integer n : tocadas)
+			if (!Objects.equals(b.get(n), replica.get(n)))
+				distintas.add(n);
+		final int[] peticiones = { 0 };
+		MerkleReplica<Integer, Integer> cliente = new MerkleReplica<Integer, Integer>() {
+			public long merkleHash(Integer fromKey, boolean fromInclusive,
+					Integer toKey, boolean toInclusive) {
+				peticiones[0]++;
+				return replica.merkleHash(fromKey, fromInclusive, toKey,
+						toInclusive);
+			}
+
+			public List<Entry<Integer, Integer>> rangeEntries(Integer fromKey,
+					boolean fromInclusive, Integer toKey, boolean toInclusive) {
+				peticiones[0]++;
+				return replica.rangeEntries(fromKey, fromInclusive, toKey,
+						toInclusive);
+			}
+		};
+		compara(b.diff(replica.merkleHash(), cliente), distintas,
+				"diff de réplicas distintas");
+		if (peticiones[0] > 100 * distintas.size())
+			throw new Error("Error, " + peticiones[0] + " peticiones para "
+					+ distintas.size() + " diferencias");
+		compara(b.sync(replica.merkleHash(), cliente), distintas.size(),
+				"claves sincronizadas");
+		compara(b.merkleHash(), replica.merkleHash(),
+				"hash tras sincronizar");
+		compara(b.inOrderKey(), replica.inOrderKey(),
+				"claves tras sincronizar");
+		b.checkInvariants();
+		replica.checkInvariants();
+
+		// Un valor null no es lo mismo que la clave ausente, en los dos
+		// sentidos del diff
+		BTree<Integer, Integer> conNull = new BTree<Integer, Integer>(3);
+		BTree<Integer, Integer> sinNull = new BTree<Integer, Integer>(4);
+		conNull.enableMerkleHashes(ENTEROS, ENTEROS);
+		sinNull.enableMerkleHashes(ENTEROS, ENTEROS);
+		for (i = 0; i < 100; i++) {
+			conNull.put(i, i);
+			sinNull.put(i, i);
+		}
+		conNull.put(100, null);
+		conNull.put(50, null);
+		compara(conNull.diff(sinNull.merkleHash(), sinNull), Arrays.asList(50,
+				100), "diff de valores null");
+		compara(sinNull.sync(conNull.merkleHash(), conNull), 2,
+				"claves sincronizadas con valores null");
+		compara(sinNull.size(), conNull.size(), "size tras sincronizar null");
+		compara(sinNull.containsKey(100), true, "null tras sincronizar");
+		compara(sinNull.merkleHash(), conNull.merkleHash(),
+				"hash tras sincronizar null");
+		compara(sinNull.diff(conNull.merkleHash(), conNull),
+				new ArrayList<Integer>(), "diff tras sincronizar null");
+		sinNull.remove(100);
+		compara(conNull.sync(sinNull.merkleHash(), sinNull), 1,
+				"sincronización de una clave ausente");
+		compara(conNull.containsKey(100), false, "clave ausente sincronizada");
+
+		// Claves y valores con el mismo hashCode ("Aa" y "BB"), y clave y
+		// valor intercambiados
+		BTree<String, String> uno = new BTree<String, String>(3);
+		BTree<String, String> otro = new BTree<String, String>(3);
+		uno.enableMerkleHashes(TEXTOS, TEXTOS);
+		otro.enableMerkleHashes(TEXTOS, TEXTOS);
+		String[][] pares = { { "Aa", "x", "BB", "x" },
+				{ "k", "Aa", "k", "BB" }, { "Aa", "BB", "BB", "Aa" } };
+		for (String[] par : pares) {
+			uno.clear();
+			otro.clear();
+			uno.put(par[0], par[1]);
+			otro.put(par[2], par[3]);
+			List<String> esperadas = new ArrayList<String>(new TreeSet<String>(
+					Arrays.asList(par[0], par[2])));
+			compara(uno.diff(otro.merkleHash(), otro), esperadas,
+					"diff con hashCode iguales " + Arrays.toString(par));
+		}
+		System.out.println("Hashes de Merkle correctos: " + peticiones[0]
+				+ " peticiones para " + distintas.size() + " diferencias");
+
+		System.out.println("Probando snapshots");
+		for (int grado = 2; grado <= 6; grado += 2)
+			for (int n : new int[] { 0, 1, 1000, LIM / 3 }) {
+				BTree<Integer, Integer> original = new BTree<Integer, Integer>(
+						grado);
+				original.enableMerkleHashes(ENTEROS, ENTEROS);
+				for (i = 0; i < n; i++)
+					original.put(rd.nextInt(4 * n), rd.nextInt());
+				ByteArrayOutputStream salida = new ByteArrayOutputStream();
+				try {
+					original.writeSnapshot(Channels.newChannel(salida),
+							ENTEROS, ENTEROS);
+					byte[] bytes = salida.toByteArray();
+					// Otro grado y otros modos, y contenido previo que el
+					// snapshot sustituye
+					BTree<Integer, Integer> restaurado = new BTree<Integer, Integer>(
+							grado + 1);
+					restaurado.enableMerkleHashes(ENTEROS, ENTEROS);
+					restaurado.enableBloomFilter(16);
+					restaurado.put(-1, -1);
+					restaurado.readSnapshot(Channels
+							.newChannel(new ByteArrayInputStream(bytes)),
+							ENTEROS, ENTEROS);
+					restaurado.checkInvariants();
+					if (!restaurado.equals(original))
+						throw new Error("Error, readSnapshot (grado " + grado
+								+ ", n " + n + ")");
+					compara(restaurado.merkleHash(), original.merkleHash(),
+							"hash tras readSnapshot");
+
+					// Un bit cambiado en un valor (sólo lo detecta el CRC) y
+					// el snapshot cortado: IOException sin tocar el árbol.
+					// La cabecera ocupa 16 bytes y cada entrada otros 16, con
+					// el valor en los 4 últimos
+					byte[] cambiado = bytes.clone();
+					int pos = bytes.length - 8;
+					if (n > 0)
+						pos = 16 + 16 * rd.nextInt(original.size()) + 12
+								+ rd.nextInt(4);
+					cambiado[pos] ^= 1 << rd.nextInt(8);
+					byte[] cortado = Arrays.copyOf(bytes,
+							rd.nextInt(bytes.length));
+					// Longitud de la primera clave dañada: no puede reservar
+					// 2GB ni leer más allá del buffer
+					byte[] largo = cortado;
+					if (n > 0) {
+						largo = bytes.clone();
+						ByteBuffer.wrap(largo).putInt(16, Integer.MAX_VALUE);
+					}
+					for (byte[] malo : new byte[][] { cambiado, cortado, largo }) {
+						try {
+							restaurado.readSnapshot(Channels
+									.newChannel(new ByteArrayInputStream(malo)),
+									ENTEROS, ENTEROS);
+							throw new Error("Error, snapshot dañado aceptado");
+						} catch (IOException e) {
+						}
+						restaurado.checkInvariants();
+						if (!restaurado.equals(original))
+							throw new Error(
+									"Error, snapshot dañado modifica el árbol");
+					}
+				} catch (IOException e) {
+					throw new Error(e);
+				}
+			}
+		// Un canal no bloqueante sin datos no deja la lectura esperando
+		try {
+			new BTree<Integer, Integer>(4).readSnapshot(
+					new ReadableByteChannel() {
+						public int read(ByteBuffer dst) {
+							return 0;
+						}
+
+						public boolean isOpen() {
+							return true;
+						}
+
+						public void close() {
+						}
+					}, ENTEROS, ENTEROS);
+			throw new Error("Error, readSnapshot con canal sin datos");
+		} catch (IOException e) {
+		}
+		System.out.println("Snapshots correctos");
+
+		System.out.println("Probando MappedBTree");
+		// Con el bit de signo cambiado el orden de los bytes sin signo es el
+		// de los enteros; ENTEROS no lo conserva para los negativos
+		Codec<Integer> ordenados = new Codec<Integer>() {
+			public byte[] encode(Integer value) {
+				return ByteBuffer.allocate(4).putInt(value ^ Integer.MIN_VALUE)
+						.array();
+			}
+
+			public Integer decode(byte[] bytes) {
+				return ByteBuffer.wrap(bytes).getInt() ^ Integer.MIN_VALUE;
+			}
+		};
+		try {
+			Path fichero = Files.createTempFile("btree", ".mapped");
+			try {
+				for (int n : new int[] { 0, 1, 1000, LIM / 3 }) {
+					BTree<Integer, String> original = new BTree<Integer, String>(
+							4);
+					for (i = 0; i < n; i++) {
+						int k = rd.nextInt(8 * n) - 4 * n;
+						// Valores null, vacíos y uno mayor que el buffer de
+						// valores de compile
+						int len = rd.nextInt(40);
+						original.put(k, len == 0 ? null : len == 1 ? "" : Integer
+								.toString(k, 36 - len % 30));
+					}
+					if (n > 1) {
+						char[] grande = new char[100000];
+						Arrays.fill(grande, 'x');
+						original.put(n, new String(grande));
+					}
+					MappedBTree.compile(original, fichero, ordenados, TEXTOS);
+					MappedBTree<Integer, String> mapeado = MappedBTree.open(
+							fichero, ordenados, TEXTOS);
+					compara(mapeado.size(), (long) original.size(),
+							"size de MappedBTree (n " + n + ")");
+					TreeSet<Integer> presentes = new TreeSet<Integer>();
+					for (Entry<Integer, String> e : original.entrySet()) {
+						presentes.add(e.getKey());
+						if (!Objects.equals(mapeado.get(e.getKey()),
+								e.getValue())
+								|| !mapeado.containsKey(e.getKey()))
+							throw new Error("Error, MappedBTree.get("
+									+ e.getKey() + ") (n " + n + ")");
+					}
+					for (i = 0; i < Math.min(4 * n, 100000); i++) {
+						int k = n < 1000 ? i - 2 * n : rd.nextInt(8 * n + 2)
+								- 4 * n - 1;
+						if (!presentes.contains(k)
+								&& (mapeado.containsKey(k) || mapeado.get(k) != null))
+							throw new Error("Error, MappedBTree contiene " + k);
+					}
+					if (mapeado.get(null) != null)
+						throw new Error("Error, MappedBTree.get(null)");
+					try {
+						mapeado.get("0");
+						throw new Error(
+								"Error, MappedBTree.get acepta otro tipo");
+					} catch (ClassCastException e) {
+					}
+				}
+
+				// Codificación que no conserva el orden del comparador
+				BTree<Integer, String> signos = new BTree<Integer, String>(4);
+				for (i = -10; i < 10; i++)
+					signos.put(i, "" + i);
+				try {
+					MappedBTree.compile(signos, fichero, ENTEROS, TEXTOS);
+					throw new Error("Error, compile acepta una codificación "
+							+ "desordenada");
+				} catch (IllegalArgumentException e) {
+				}
+			} finally {
+				Files.delete(fichero);
+			}
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		System.out.println("MappedBTree correcto");
+
+		System.out.println("Probando ShardedBTree concurrente");
+		// Sin muestra todas las claves van al primer shard hasta que put
+		// rebalancea. Cada hilo usa las claves congruentes con su número, así
+		// que puede comparar cada resultado con el ConcurrentSkipListMap
+		// aunque los demás hilos lo estén modificando. Las claves están en
+		// una ventana que avanza, borrando las que se quedan atrás, para que
+		// las fronteras se muevan entre las claves que se usan mientras otro
+		// hilo rebalancea sin parar
+		final int hilos = 4;
+		final ShardedBTree<Integer, Integer> sharded = new ShardedBTree<Integer, Integer>(
+				3, 8);
+		final ConcurrentSkipListMap<Integer, Integer> concurrente = new ConcurrentSkipListMap<Integer, Integer>();
+		final Throwable[] errores = new Throwable[hilos + 1];
+		final AtomicInteger terminados = new AtomicInteger();
+		Thread[] threads = new Thread[hilos + 1];
+		for (i = 0; i < hilos; i++) {
+			final int h = i;
+			threads[i] = new Thread(() -> {
+				try {
+					Random r = new Random(h);
+					for (int j = 0; j < LIM / 2; j++) {
+						if (j % 4 == 0) {
+							Integer atras = (j / 4 - 1) * hilos + h;
+							compara(sharded.remove(atras), concurrente
+									.remove(atras), "remove concurrente");
+						}
+						Integer n = (j / 4 + r.nextInt(1024)) * hilos + h, v = r
+								.nextInt();
+						switch (r.nextInt(4)) {
+						case 0:
+							compara(sharded.remove(n), concurrente.remove(n),
+									"remove concurrente");
+							break;
+						case 1:
+							compara(sharded.get(n), concurrente.get(n),
+									"get concurrente");
+							break;
+						default:
+							compara(sharded.put(n, v), concurrente.put(n, v),
+									"put concurrente");
+						}
+					}
+				} catch (Throwable e) {
+					errores[h] = e;
+				}
+				terminados.incrementAndGet();
+			});
+		}
+		threads[hilos] = new Thread(() -> {
+			try {
+				while (terminados.get() < hilos)
+					sharded.rebalance();
+			} catch (Throwable e) {
+				errores[hilos] = e;
+			}
+		});
+		for (Thread thread : threads)
+			thread.start();
+		try {
+			for (Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			throw new Error(e);
+		}
+		for (Throwable e : errores)
+			if (e != null)
+				throw new Error("Error, ShardedBTree concurrente: " + e, e);
+		sharded.checkInvariants();
+		compara(sharded.size(), concurrente.size(), "size concurrente");
+		compara(sharded.inOrderKey(),
+				new ArrayList<Integer>(concurrente.keySet()),
+				"claves concurrentes");
+		for (Entry<Integer, Integer> e : concurrente.entrySet())
+			compara(sharded.get(e.getKey()), e.getValue(), "get concurrente");
+
+		// Rebalanceo al insertar: en orden creciente todas las claves van al
+		// último shard, que se rebalancea cuando tiene más de la mitad
+		ShardedBTree<Integer, Integer> creciente = new ShardedBTree<Integer, Integer>(
+				3, 4);
+		for (i = 0; i < LIM; i++)
+			creciente.put(i, i);
+		creciente.checkInvariants();
+		int[] tamanos = creciente.shardSizes();
+		for (int n : tamanos)
+			if (n > 3 * LIM / 4)
+				throw new Error("Error, sin rebalanceo al insertar: "
+						+ Arrays.toString(tamanos));
+		ArrayList<Integer> crecientes = creciente.inOrderKey();
+		compara(crecientes.size(), LIM, "size tras rebalancear al insertar");
+		for (i = 0; i < LIM; i++)
+			compara(crecientes.get(i), i, "claves tras rebalancear al insertar");
+		sharded.rebalance();
+		sharded.checkInvariants();
+		tamanos = sharded.shardSizes();
+		int min = Integer.MAX_VALUE, max = 0;
+		for (int n : tamanos) {
+			min = Math.min(min, n);
+			max = Math.max(max, n);
+		}
+		if (max - min > 1)
+			throw new Error("Error, rebalanceo desigual: "
+					+ Arrays.toString(tamanos));
+		compara(sharded.inOrderKey(),
+				new ArrayList<Integer>(concurrente.keySet()),
+				"claves tras rebalancear");
+		System.out.println("ShardedBTree concurrente correcto");
+	}
+
+	private static boolean equivalentes(Entry<?, ?> a, Entry<?, ?> b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static void compara(Object a, Object esperado, String que) {
+		if (a == null ? esperado != null : !a.equals(esperado))
+			throw new Error("Error, " + que + ": " + a + " en lugar de "
+					+ esperado);
+	}
+
+	/**
+	 * Pruebas diferenciales en paralelo: para cada semilla de [primera,
+	 * primera + semillas) se genera una secuencia aleatoria de operaciones
+	 * (put, remove, get, compute, merge, navegación, polls, inserciones al
+	 * final, recorridos, compactación, resúmenes y splitAt/join) sobre un
+	 * árbol de grado y modo (filtro de Bloom, resúmenes, hashes de Merkle,
+	 * caché o buffer) también aleatorios, y se aplica a la vez a un BTree y a un TreeMap
+	 * comparando cada resultado. La estructura se comprueba con
+	 * checkInvariants en los pasos potencia de 2 y al final.
+	 * 
+	 * Cada semilla es una tarea de un ForkJoinPool con un hilo por
+	 * procesador. Una semilla que falla se reproduce sola con fuzz(semilla,
+	 * 1, operaciones)
+	 * 
+	 * @param operaciones
+	 *            operaciones por semilla. El árbol llega a tener del orden de
+	 *            operaciones / 3 entradas
+	 * @throws Error
+	 *             si falla alguna semilla, tras terminar todas
+	 */
+	public static void fuzz(long primera, int semillas, final int operaciones) {
+		System.out.println("Probando " + semillas + " semillas desde "
+				+ primera + ", " + operaciones + " operaciones");
+		final ArrayList<String> fallos = new ArrayList<String>();
+		final ArrayList<RecursiveAction> tareas = new ArrayList<RecursiveAction>(
+				semillas);
+		for (int i = 0; i < semillas; i++) {
+			final long semilla = primera + i;
+			tareas.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					try {
+						fuzz(semilla, operaciones);
+						System.out.println("Semilla " + semilla + " correcta");
+					} catch (Throwable e) {
+						String fallo = "semilla " + semilla + ": " + e;
+						System.out.println("Error, " + fallo);
+						synchronized (fallos) {
+							fallos.add(fallo);
+						}
+					}
+				}
+			});
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(tareas);
+			}
+		});
+		pool.shutdown();
+		if (!fallos.isEmpty())
+			throw new Error("Error, fallan " + fallos.size() + " semillas: "
+					+ fallos);
+		System.out.println("Todas las semillas correctas");
+	}
+
+	/**
+	 * Secuencia de operaciones de una semilla (ver fuzz)
+	 */
+	private static void fuzz(long semilla, int operaciones) {
+		Random rd = new Random(semilla);
+		int grado = 2 + rd.nextInt(rd.nextBoolean() ? 4 : 63);
+		BTree<Integer, Integer> b = new BTree<Integer, Integer>(grado);
+		TreeMap<Integer, Integer> m = new TreeMap<Integer, Integer>();
+		if (rd.nextInt(3) == 0)
+			b.enableBloomFilter(1 + rd.nextInt(operaciones));
+		Monoid<Integer> suma = null;
+		if (rd.nextInt(3) == 0) {
+			suma = new Monoid<Integer>() {
+				public Integer identity() {
+					return 0;
+				}
+
+				public Integer combine(Integer a, Integer c) {
+					return a + c;
+				}
+			};
+			b.enableAggregates(suma);
+		}
+		if (rd.nextInt(3) == 0)
+			b.enableMerkleHashes(ENTEROS, ENTEROS);
+		// Modo caché sin capacidad ni caducidad, que no expulsa: el modelo
+		// sigue siendo el TreeMap, y checkInvariants comprueba la lista de uso
+		ToLongBiFunction<Integer, Integer> pesaje = (c, w) -> 1 + (c & 3);
+		boolean cache = rd.nextInt(3) == 0;
+		if (cache)
+			b.enableCache(0, rd.nextBoolean() ? pesaje : null, 0);
+		// Modo buffer (incompatible con el modo caché): casi todas las
+		// escrituras con ingest y delete, y pocas operaciones que vacían los
+		// buffers, para que lleguen a llenarse
+		int capacidad = !cache && rd.nextInt(4) == 0 ? 1 + rd.nextInt(64) : 0;
+		if (capacidad > 0)
+			b.enableWriteBuffer(capacidad);
+		int rango = Math.max(16, operaciones / 2);
+		int paso = 0, op = -1;
+		try {
+			for (; paso < operaciones; paso++) {
+				op = rd.nextInt(100);
+				Integer k = rd.nextInt(rango), v = rd.nextInt();
+				if (capacidad > 0 && op >= 66 && op < 92 && rd.nextInt(64) > 0)
+					op = 60;
+				if (op < 60 && capacidad > 0 && rd.nextInt(64) > 0) {
+					if (op >= 40) {
+						b.delete(k);
+						m.remove(k);
+					} else {
+						Integer w = suma == null && op == 0 ? null : v;
+						b.ingest(k, w);
+						m.put(k, w);
+					}
+				} else if (op < 40)
+					compara(b.put(k, v), m.put(k, v), "put");
+				else if (op < 60)
+					compara(b.remove(k), m.remove(k), "remove");
+				else if (op < 66)
+					compara(b.get(k), m.get(k), "get");
+				else if (op < 67)
+					compara(b.compute(k, (c, w) -> w == null ? v
+							: (w % 3 == 0 ? null : w + v)), m.compute(k, (c,
+							w) -> w == null ? v : (w % 3 == 0 ? null : w + v)),
+							"compute");
+				else if (op < 68)
+					compara(b.merge(k, v, (w, z) -> w % 3 == 0 ? null : w ^ z),
+							m.merge(k, v, (w, z) -> w % 3 == 0 ? null : w ^ z),
+							"merge");
+				else if (op < 69)
+					compara(b.computeIfPresent(k, (c, w) -> w % 2 == 0 ? null
+							: v), m.computeIfPresent(k, (c, w) -> w % 2 == 0 ? null
+							: v), "computeIfPresent");
+				else if (op < 70)
+					compara(b.putIfAbsent(k, v), m.putIfAbsent(k, v),
+							"putIfAbsent");
+				else if (op < 72)
+					compara(b.floorEntry(k), m.floorEntry(k), "floorEntry");
+				else if (op < 74)
+					compara(b.ceilingEntry(k), m.ceilingEntry(k),
+							"ceilingEntry");
+				else if (op < 75)
+					compara(b.higherEntry(k), m.higherEntry(k), "higherEntry");
+				else if (op < 76)
+					compara(b.lowerEntry(k), m.lowerEntry(k), "lowerEntry");
+				else if (op < 77)
+					compara(b.pollFirstEntry(), m.pollFirstEntry(),
+							"pollFirstEntry");
+				else if (op < 78)
+					compara(b.pollLastEntry(), m.pollLastEntry(),
+							"pollLastEntry");
+				else if (op < 81) {
+					// Racha de inserciones al final
+					int base = m.isEmpty() ? 0 : m.lastKey();
+					for (int i = 1, n = 1 + rd.nextInt(64); i <= n; i++) {
+						b.put(base + i, v);
+						m.put(base + i, v);
+					}
+				} else if (op < 84) {
+					// Recorrido corto, borrando alguna entrada con el iterador
+					boolean descendente = rd.nextBoolean();
+					Iterator<Entry<Integer, Integer>> it = (descendente ? b
+							.headMap(k, true).descendingMap() : b.tailMap(k,
+							true)).entrySet().iterator();
+					Iterator<Entry<Integer, Integer>> esperado = (descendente ? m
+							.headMap(k, true).descendingMap() : m.tailMap(k,
+							true)).entrySet().iterator();
+					for (int i = 0; i < 16 && esperado.hasNext(); i++) {
+						if (!it.hasNext())
+							throw new Error("Error, recorrido corto");
+						compara(it.next(), esperado.next(), "recorrido");
+						if (rd.nextInt(4) == 0) {
+							it.remove();
+							esperado.remove();
+						}
+					}
+				} else if (op < 85)
+					b.compact(1 + rd.nextInt(32));
+				else if (op < 87 && suma != null) {
+					int hasta = k + rd.nextInt(64);
+					int esperado = 0;
+					for (Integer w : m.subMap(k, hasta).values())
+						esperado += w;
+					compara(b.aggregate(k, hasta), esperado, "aggregate");
+				} else if (op < 88 && rd.nextInt(10) == 0) {
+					// Cada 1000 operaciones, de media: las comprobaciones
+					// recorren todo el árbol
+					BTree<Integer, Integer>[] partes = b.splitAt(k);
+					compara(partes[0].size(), m.headMap(k).size(), "splitAt");
+					compara(partes[1].size(), m.tailMap(k).size(), "splitAt");
+					partes[0].checkInvariants();
+					partes[1].checkInvariants();
+					if (rd.nextBoolean()) {
+						// Filtros sólo con las claves de cada mitad, como los
+						// de árboles construidos por separado
+						partes[0].rebuildBloomFilter();
+						partes[1].rebuildBloomFilter();
+					}
+					if (cache) {
+						// Las mitades no conservan el modo; join enlaza las
+						// de right, empalmando su lista si la tiene
+						partes[0].enableCache(0, rd.nextBoolean() ? pesaje
+								: null, 0);
+						if (rd.nextBoolean())
+							partes[1].enableCache(0, rd.nextBoolean() ? pesaje
+									: null, 0);
+					}
+					b = join(partes[0], partes[1]);
+					b.checkInvariants();
+					if (capacidad > 0)
+						b.enableWriteBuffer(capacidad);
+				} else if (op < 91) {
+					// Vista de rango al azar: tamaño y extracción por los
+					// extremos
+					int hasta = k + rd.nextInt(64);
+					boolean desdeInclusivo = rd.nextBoolean(), hastaInclusivo = rd
+							.nextBoolean();
+					int tipo = rd.nextInt(3);
+					NavigableMap<Integer, Integer> vb = tipo == 0 ? b.subMap(k,
+							desdeInclusivo, hasta, hastaInclusivo)
+							: tipo == 1 ? b.headMap(hasta, hastaInclusivo) : b
+									.tailMap(k, desdeInclusivo);
+					NavigableMap<Integer, Integer> vm = tipo == 0 ? m.subMap(k,
+							desdeInclusivo, hasta, hastaInclusivo)
+							: tipo == 1 ? m.headMap(hasta, hastaInclusivo) : m
+									.tailMap(k, desdeInclusivo);
+					if (rd.nextBoolean()) {
+						vb = vb.descendingMap();
+						vm = vm.descendingMap();
+					}
+					compara(vb.size(), vm.size(), "size de la vista");
+					if (rd.nextBoolean())
+						compara(vb.pollFirstEntry(), vm.pollFirstEntry(),
+								"pollFirstEntry de la vista");
+					else
+						compara(vb.pollLastEntry(), vm.pollLastEntry(),
+								"pollLastEntry de la vista");
+				} else if (op < 92 && suma == null)
+					// Valores null, presentes como en TreeMap
+					compara(b.put(k, null), m.put(k, null), "put null");
+				else
+					compara(b.containsKey(k), m.containsKey(k), "containsKey");
+				if (Integer.bitCount(paso + 1) == 1)
+					b.checkInvariants();
+			}
+			op = -1;
+			b.checkInvariants();
+			compara(b.size(), m.size(), "size");
+			if (!b.equals(m))
+				throw new Error("Error, contenido distinto al terminar");
+			if (suma != null)
+				compara(b.aggregate(), b.values().stream()
+						.reduce(0, Integer::sum), "aggregate");
+		} catch (Throwable e) {
+			throw new Error("paso " + paso + ", operación " + op + ", grado "
+					+ grado + ", buffer " + capacidad + ": " + e, e);
+		}
 	}
 }
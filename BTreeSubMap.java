@@ -0,0 +1,545 @@
+package pkg;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ *
+ * Vista de un rango de claves de un BTree, en orden creciente o decreciente
+ * (subMap, headMap, tailMap y descendingMap de java.util.NavigableMap). No
+ * guarda entradas: cada operación se traduce a la operación equivalente del
+ * árbol, comprobando que la clave esté en el rango, por lo que los cambios en
+ * la vista se reflejan en el árbol y viceversa
+ *
+ * @param <K>
+ *            tipo de las claves utilizadas para mapear los valores
+ * @param <V>
+ *            tipo de los valores mapeados
+ */
+class BTreeSubMap<K extends Comparable<K>, V> extends AbstractMap<K, V>
+		implements NavigableMap<K, V> {
+
+	private final BTree<K, V> m;
+	// Límites del rango en el orden del árbol, null si no hay límite
+	private final K lo;
+	private final boolean loInclusive;
+	private final K hi;
+	private final boolean hiInclusive;
+	private final boolean descendente;
+
+	BTreeSubMap(BTree<K, V> m, K lo, boolean loInclusive, K hi,
+			boolean hiInclusive, boolean descendente) {
+		this.m = m;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descendente = descendente;
+	}
+
+	private boolean pordebajo(K key) {
+		if (lo == null)
+			return false;
+		int c = key.compareTo(lo);
+		return c < 0 || (c == 0 && !loInclusive);
+	}
+
+	private boolean porencima(K key) {
+		if (hi == null)
+			return false;
+		int c = key.compareTo(hi);
+		return c > 0 || (c == 0 && !hiInclusive);
+	}
+
+	private boolean enRango(K key) {
+		return !pordebajo(key) && !porencima(key);
+	}
+
+	/**
+	 * Como enRango, pero considerando incluidos los límites no inclusivos
+	 */
+	private boolean enRangoCerrado(K key) {
+		return (lo == null || key.compareTo(lo) >= 0)
+				&& (hi == null || key.compareTo(hi) <= 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean enRangoObjeto(Object key) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		return enRango((K) key);
+	}
+
+	// Navegación en el orden del árbol, limitada al rango
+
+	private Entry<K, V> dentro(Entry<K, V> e) {
+		return e == null || !enRango(e.getKey()) ? null : e;
+	}
+
+	private Entry<K, V> menorDelRango() {
+		return dentro(lo == null ? m.firstEntry() : loInclusive ? m
+				.ceilingEntry(lo) : m.higherEntry(lo));
+	}
+
+	private Entry<K, V> mayorDelRango() {
+		return dentro(hi == null ? m.lastEntry() : hiInclusive ? m
+				.floorEntry(hi) : m.lowerEntry(hi));
+	}
+
+	private Entry<K, V> techo(K key, boolean inclusivo) {
+		if (pordebajo(key))
+			return menorDelRango();
+		return dentro(inclusivo ? m.ceilingEntry(key) : m.higherEntry(key));
+	}
+
+	private Entry<K, V> suelo(K key, boolean inclusivo) {
+		if (porencima(key))
+			return mayorDelRango();
+		return dentro(inclusivo ? m.floorEntry(key) : m.lowerEntry(key));
+	}
+
+	private static <K> K clave(Entry<K, ?> e) {
+		return e == null ? null : e.getKey();
+	}
+
+	private static <K> K claveDe(Entry<K, ?> e) {
+		if (e == null)
+			throw new NoSuchElementException();
+		return e.getKey();
+	}
+
+	// Operaciones de Map
+
+	@Override
+	public V get(Object key) {
+		return enRangoObjeto(key) ? m.get(key) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return enRangoObjeto(key) && m.containsKey(key);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (!enRangoObjeto(key))
+			throw new IllegalArgumentException("Clave fuera del rango");
+		return m.put(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return enRangoObjeto(key) ? m.remove(key) : null;
+	}
+
+	/**
+	 * Diferencia entre las posiciones de los límites en el árbol (ver
+	 * cuentaMenores en BTree), O(t log n) sin recorrer el rango
+	 */
+	@Override
+	public int size() {
+		int desde = lo == null ? 0 : m.cuentaMenores(lo, !loInclusive);
+		int hasta = hi == null ? m.size() : m.cuentaMenores(hi, hiInclusive);
+		return Math.max(0, hasta - desde);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		if (lo == null && hi == null)
+			return m.isEmpty();
+		return menorDelRango() == null;
+	}
+
+	// Operaciones de NavigableMap, en el orden de la vista
+
+	public Comparator<? super K> comparator() {
+		return descendente ? Collections.reverseOrder(m.comparator()) : m
+				.comparator();
+	}
+
+	public Entry<K, V> firstEntry() {
+		return descendente ? mayorDelRango() : menorDelRango();
+	}
+
+	public Entry<K, V> lastEntry() {
+		return descendente ? menorDelRango() : mayorDelRango();
+	}
+
+	public K firstKey() {
+		return claveDe(firstEntry());
+	}
+
+	public K lastKey() {
+		return claveDe(lastEntry());
+	}
+
+	public Entry<K, V> lowerEntry(K key) {
+		return descendente ? techo(key, false) : suelo(key, false);
+	}
+
+	public K lowerKey(K key) {
+		return clave(lowerEntry(key));
+	}
+
+	public Entry<K, V> floorEntry(K key) {
+		return descendente ? techo(key, true) : suelo(key, true);
+	}
+
+	public K floorKey(K key) {
+		return clave(floorEntry(key));
+	}
+
+	public Entry<K, V> ceilingEntry(K key) {
+		return descendente ? suelo(key, true) : techo(key, true);
+	}
+
+	public K ceilingKey(K key) {
+		return clave(ceilingEntry(key));
+	}
+
+	public Entry<K, V> higherEntry(K key) {
+		return descendente ? suelo(key, false) : techo(key, false);
+	}
+
+	public K higherKey(K key) {
+		return clave(higherEntry(key));
+	}
+
+	public Entry<K, V> pollFirstEntry() {
+		return descendente ? m.quitaPrimera(hi, hiInclusive, lo, loInclusive,
+				true) : m.quitaPrimera(lo, loInclusive, hi, hiInclusive, false);
+	}
+
+	public Entry<K, V> pollLastEntry() {
+		return descendente ? m.quitaPrimera(lo, loInclusive, hi, hiInclusive,
+				false) : m.quitaPrimera(hi, hiInclusive, lo, loInclusive, true);
+	}
+
+	public NavigableMap<K, V> descendingMap() {
+		return new BTreeSubMap<K, V>(m, lo, loInclusive, hi, hiInclusive,
+				!descendente);
+	}
+
+	public NavigableSet<K> navigableKeySet() {
+		return new KeySet<K>(this);
+	}
+
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return navigableKeySet();
+	}
+
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive,
+			K toKey, boolean toInclusive) {
+		if (fromKey == null || toKey == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (comparator().compare(fromKey, toKey) > 0)
+			throw new IllegalArgumentException("fromKey > toKey");
+		if (descendente)
+			return acota(toKey, toInclusive, true, fromKey, fromInclusive, true);
+		return acota(fromKey, fromInclusive, true, toKey, toInclusive, true);
+	}
+
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		if (toKey == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (descendente)
+			return acota(toKey, inclusive, true, null, false, false);
+		return acota(null, false, false, toKey, inclusive, true);
+	}
+
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		if (fromKey == null)
+			throw new NullPointerException("La clave no puede ser null");
+		if (descendente)
+			return acota(null, false, false, fromKey, inclusive, true);
+		return acota(fromKey, inclusive, true, null, false, false);
+	}
+
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	public SortedMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * Vista con el rango de ésta restringido por los nuevos límites (en el
+	 * orden del árbol), que deben estar dentro del rango actual
+	 *
+	 * @param conLo
+	 *            si se cambia el límite inferior
+	 * @param conHi
+	 *            si se cambia el límite superior
+	 */
+	private NavigableMap<K, V> acota(K nuevoLo, boolean nuevoLoInclusive,
+			boolean conLo, K nuevoHi, boolean nuevoHiInclusive, boolean conHi) {
+		if (conLo
+				&& !(nuevoLoInclusive ? enRango(nuevoLo)
+						: enRangoCerrado(nuevoLo)))
+			throw new IllegalArgumentException("Clave fuera del rango");
+		if (conHi
+				&& !(nuevoHiInclusive ? enRango(nuevoHi)
+						: enRangoCerrado(nuevoHi)))
+			throw new IllegalArgumentException("Clave fuera del rango");
+		return new BTreeSubMap<K, V>(m, conLo ? nuevoLo : lo,
+				conLo ? nuevoLoInclusive : loInclusive, conHi ? nuevoHi : hi,
+				conHi ? nuevoHiInclusive : hiInclusive, descendente);
+	}
+
+	// Recorridos
+
+	/**
+	 *
+	 * @return iterador sobre las entradas del rango, en el orden de la vista
+	 */
+	private Iterator<Entry<K, V>> recorrido() {
+		final Iterator<Entry<K, V>> it = descendente ? m.recorrido(hi,
+				hiInclusive, true) : m.recorrido(lo, loInclusive, false);
+		return new Iterator<Entry<K, V>>() {
+			// Entrada leída por adelantado para saber si sigue en el rango
+			private Entry<K, V> siguiente;
+			private Entry<K, V> ultima;
+			private boolean terminado;
+
+			@Override
+			public boolean hasNext() {
+				if (siguiente == null && !terminado) {
+					if (it.hasNext())
+						siguiente = it.next();
+					if (siguiente == null
+							|| (descendente ? pordebajo(siguiente.getKey())
+									: porencima(siguiente.getKey()))) {
+						siguiente = null;
+						terminado = true;
+					}
+				}
+				return siguiente != null;
+			}
+
+			@Override
+			public Entry<K, V> next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				ultima = siguiente;
+				siguiente = null;
+				return ultima;
+			}
+
+			@Override
+			public void remove() {
+				if (ultima == null)
+					throw new IllegalStateException();
+				// No se usa it.remove(), it puede haber avanzado ya hasta
+				// siguiente. El recorrido del árbol se recoloca solo
+				m.remove(ultima.getKey());
+				ultima = null;
+			}
+		};
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return recorrido();
+			}
+
+			@Override
+			public int size() {
+				return BTreeSubMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return BTreeSubMap.this.isEmpty();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry))
+					return false;
+				Entry<?, ?> e = (Entry<?, ?>) o;
+				// Con valor null, la entrada debe existir (como en TreeMap)
+				V v = get(e.getKey());
+				return v == null ? e.getValue() == null
+						&& containsKey(e.getKey()) : v.equals(e.getValue());
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (!contains(o))
+					return false;
+				BTreeSubMap.this.remove(((Entry<?, ?>) o).getKey());
+				return true;
+			}
+
+			@Override
+			public void clear() {
+				BTreeSubMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public void clear() {
+		if (lo == null && hi == null) {
+			m.clear();
+			return;
+		}
+		for (Iterator<Entry<K, V>> iterator = recorrido(); iterator.hasNext();) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Conjunto de claves de un NavigableMap (el árbol o una de sus vistas)
+	 */
+	static class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+		private final NavigableMap<K, ?> m;
+
+		KeySet(NavigableMap<K, ?> m) {
+			this.m = m;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			final Iterator<? extends Entry<K, ?>> it = m.entrySet().iterator();
+			return new Iterator<K>() {
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return it.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					it.remove();
+				}
+			};
+		}
+
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public int size() {
+			return m.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return m.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!m.containsKey(o))
+				return false;
+			m.remove(o);
+			return true;
+		}
+
+		@Override
+		public void clear() {
+			m.clear();
+		}
+
+		public Comparator<? super K> comparator() {
+			return m.comparator();
+		}
+
+		public K first() {
+			return m.firstKey();
+		}
+
+		public K last() {
+			return m.lastKey();
+		}
+
+		public K lower(K e) {
+			return m.lowerKey(e);
+		}
+
+		public K floor(K e) {
+			return m.floorKey(e);
+		}
+
+		public K ceiling(K e) {
+			return m.ceilingKey(e);
+		}
+
+		public K higher(K e) {
+			return m.higherKey(e);
+		}
+
+		public K pollFirst() {
+			return clave(m.pollFirstEntry());
+		}
+
+		public K pollLast() {
+			return clave(m.pollLastEntry());
+		}
+
+		public NavigableSet<K> descendingSet() {
+			return new KeySet<K>(m.descendingMap());
+		}
+
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive,
+				K toElement, boolean toInclusive) {
+			return new KeySet<K>(m.subMap(fromElement, fromInclusive,
+					toElement, toInclusive));
+		}
+
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return new KeySet<K>(m.headMap(toElement, inclusive));
+		}
+
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return new KeySet<K>(m.tailMap(fromElement, inclusive));
+		}
+
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+}
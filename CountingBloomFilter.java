@@ -0,0 +1,228 @@
+package pkg;
+
+import java.util.Arrays;
+
+/**
+ *
+ *         Filtro de Bloom por bloques con contadores, para descartar sin
+ *         recorrer el árbol las búsquedas de claves que no están.
+ *
+ *         Cada clave se asigna a un único bloque de 64 bytes (una línea de
+ *         caché) con 128 contadores de 4 bits, y dentro de él a SONDAS
+ *         contadores. Al usar contadores en lugar de bits se pueden quitar
+ *         claves: un contador saturado no se decrementa nunca, por lo que el
+ *         filtro nunca da falsos negativos, aunque pueda ir acumulando falsos
+ *         positivos (ver rebuild en BTree).
+ *
+ *         Las claves se reparten según su hashCode, que debe ser coherente con
+ *         compareTo.
+ */
+public class CountingBloomFilter {
+
+	// Contadores por bloque: 8 longs de 16 contadores de 4 bits = 64 bytes
+	private static final int CONTADORES_BLOQUE = 128;
+	private static final int LONGS_BLOQUE = CONTADORES_BLOQUE / 16;
+	// Contadores por clave previstos, y contadores por clave que se tocan
+	private static final int CONTADORES_CLAVE = 10;
+	private static final int SONDAS = 6;
+	private static final int SATURADO = 15;
+
+	private final int capacidad;
+	private final int bloques;
+	private final long[] contadores;
+
+	private long consultas;
+	private long descartes;
+	private long falsosPositivos;
+
+	/**
+	 * @param capacidad
+	 *            número de claves previsto
+	 */
+	public CountingBloomFilter(int capacidad) {
+		this.capacidad = Math.max(capacidad, 1);
+		this.bloques = (int) Math.max(1, ((long) this.capacidad
+				* CONTADORES_CLAVE + CONTADORES_BLOQUE - 1)
+				/ CONTADORES_BLOQUE);
+		this.contadores = new long[bloques * LONGS_BLOQUE];
+	}
+
+	private CountingBloomFilter(CountingBloomFilter o) {
+		this.capacidad = o.capacidad;
+		this.bloques = o.bloques;
+		this.contadores = o.contadores.clone();
+	}
+
+	public int capacity() {
+		return capacidad;
+	}
+
+	/**
+	 * Mezcla los bits de un hashCode (finalizador de SplitMix64)
+	 */
+	private static long mezcla(int h) {
+		long z = h * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 *
+	 * @return posición del primer long del bloque que corresponde a h
+	 */
+	private int bloque(long h) {
+		return (int) (((h >>> 32) * bloques) >>> 32) * LONGS_BLOQUE;
+	}
+
+	/**
+	 * Posición dentro del bloque de la sonda i, por doble hash con los 14 bits
+	 * bajos de h (el bloque sale de los 32 altos)
+	 */
+	private static int sonda(long h, int i) {
+		int a = (int) h, b = ((int) h >>> 7) | 1;
+		return (a + i * b) & (CONTADORES_BLOQUE - 1);
+	}
+
+	/**
+	 * Suma d (1 o -1) a los contadores de key. Los contadores saturados no
+	 * cambian
+	 */
+	private void modifica(Object key, int d) {
+		long h = mezcla(key.hashCode());
+		int base = bloque(h);
+		for (int i = 0; i < SONDAS; i++) {
+			int pos = sonda(h, i);
+			int w = base + (pos >>> 4);
+			int desp = (pos & 15) << 2;
+			long c = (contadores[w] >>> desp) & 0xF;
+			if (c == SATURADO || (d < 0 && c == 0))
+				continue;
+			contadores[w] += (long) d << desp;
+		}
+	}
+
+	public void add(Object key) {
+		modifica(key, 1);
+	}
+
+	public void remove(Object key) {
+		modifica(key, -1);
+	}
+
+	/**
+	 *
+	 * @return false si key seguro que no está, true si puede estar
+	 */
+	public boolean mightContain(Object key) {
+		consultas++;
+		if (!puedeContener(key)) {
+			descartes++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Como mightContain, sin contar la consulta en las estadísticas (ver
+	 * checkInvariants en BTree)
+	 */
+	boolean puedeContener(Object key) {
+		long h = mezcla(key.hashCode());
+		int base = bloque(h);
+		for (int i = 0; i < SONDAS; i++) {
+			int pos = sonda(h, i);
+			long w = contadores[base + (pos >>> 4)];
+			if (((w >>> ((pos & 15) << 2)) & 0xF) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Anota que una clave para la que mightContain devolvió true no estaba
+	 */
+	void falsoPositivo() {
+		falsosPositivos++;
+	}
+
+	public void clear() {
+		Arrays.fill(contadores, 0);
+	}
+
+	/**
+	 *
+	 * @return copia del filtro (sin las estadísticas)
+	 */
+	public CountingBloomFilter copy() {
+		return new CountingBloomFilter(this);
+	}
+
+	/**
+	 * Suma al filtro los contadores de o, que debe tener el mismo número de
+	 * bloques. El resultado puede contener las claves de los dos
+	 *
+	 * @return false si los filtros no son compatibles (no se modifica nada)
+	 */
+	public boolean addAll(CountingBloomFilter o) {
+		if (o.bloques != bloques)
+			return false;
+		for (int w = 0; w < contadores.length; w++) {
+			long a = contadores[w], b = o.contadores[w], r = 0;
+			for (int desp = 0; desp < 64; desp += 4) {
+				long c = Math.min(((a >>> desp) & 0xF) + ((b >>> desp) & 0xF),
+						SATURADO);
+				r |= c << desp;
+			}
+			contadores[w] = r;
+		}
+		return true;
+	}
+
+	public long queries() {
+		return consultas;
+	}
+
+	/**
+	 *
+	 * @return consultas descartadas por el filtro (claves que no están)
+	 */
+	public long definiteMisses() {
+		return descartes;
+	}
+
+	public long falsePositives() {
+		return falsosPositivos;
+	}
+
+	/**
+	 *
+	 * @return proporción de falsos positivos observada entre las consultas de
+	 *         claves que no estaban
+	 */
+	public double observedFalsePositiveRate() {
+		long ausentes = descartes + falsosPositivos;
+		return ausentes == 0 ? 0 : (double) falsosPositivos / ausentes;
+	}
+
+	/**
+	 *
+	 * @return proporción de falsos positivos esperada según la ocupación de
+	 *         los contadores (proporción de contadores no nulos elevada al
+	 *         número de sondas)
+	 */
+	public double expectedFalsePositiveRate() {
+		long ocupados = 0;
+		for (int w = 0; w < contadores.length; w++)
+			for (int desp = 0; desp < 64; desp += 4)
+				if (((contadores[w] >>> desp) & 0xF) != 0)
+					ocupados++;
+		return Math.pow((double) ocupados / (16L * contadores.length), SONDAS);
+	}
+
+	public String toString() {
+		return "consultas=" + consultas + " descartes=" + descartes
+				+ " falsosPositivos=" + falsosPositivos + " fpEsperado="
+				+ expectedFalsePositiveRate();
+	}
+}
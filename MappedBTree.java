@@ -0,0 +1,503 @@
+package pkg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ *
+ *         Árbol de sólo lectura sobre un fichero proyectado en memoria
+ *         (FileChannel.map). El fichero se genera a partir de un BTree con
+ *         compile y se abre con open: las búsquedas se hacen directamente
+ *         sobre los bytes del fichero, sin deserializar nodos ni crearlos en
+ *         el heap, y varios procesos que abran el mismo fichero comparten la
+ *         misma copia en la caché de páginas del sistema.
+ *
+ *         Formato: una página de cabecera, las páginas de nodos (alineadas a
+ *         PAGINA bytes) en el orden en que se llenan al construir el árbol de
+ *         abajo a arriba, y al final la región de valores. Cada página de nodo
+ *         tiene una cabecera (hoja, número de claves, primer hijo), un
+ *         directorio con la posición de cada registro dentro de la página y
+ *         los registros: longitud y bytes de la clave, y después la posición
+ *         (desde el comienzo de la región de valores) y longitud del valor
+ *         (hojas) o el número de página del hijo a la derecha de la clave
+ *         (nodos internos).
+ *
+ *         Las claves se comparan byte a byte sin signo, por lo que la
+ *         codificación de claves debe conservar el orden.
+ *
+ * @param <K>
+ *            tipo de las claves utilizadas para mapear los valores
+ * @param <V>
+ *            tipo de los valores mapeados
+ */
+public class MappedBTree<K extends Comparable<K>, V> {
+
+	// Cabecera del fichero: "BTRM" y versión del formato
+	private static final int MAGIC = 0x4254524D;
+	private static final int VERSION = 2;
+	// Tamaño de página, múltiplo de la línea de caché y de la página del SO
+	private static final int PAGINA = 4096;
+	// Cabecera de cada página de nodo: hoja (1 byte), relleno (1 byte),
+	// número de claves (2 bytes), primer hijo (4 bytes)
+	private static final int CABECERA_NODO = 8;
+	// Tamaño máximo de una clave, para que quepan varias por página
+	private static final int MAX_CLAVE = PAGINA / 8;
+	// Tamaño de cada proyección del fichero (múltiplo de PAGINA, ninguna
+	// página de nodo queda partida entre dos proyecciones)
+	private static final long SEGMENTO = 1L << 30;
+
+	private final BTree.Codec<K> keyCodec;
+	private final BTree.Codec<V> valueCodec;
+	private final MappedByteBuffer[] segmentos;
+	private final int raiz;
+	private final long size;
+	// Posición en el fichero de la región de valores
+	private final long valores;
+
+	private MappedBTree(BTree.Codec<K> keyCodec, BTree.Codec<V> valueCodec,
+			MappedByteBuffer[] segmentos, int raiz, long size, long valores) {
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.segmentos = segmentos;
+		this.raiz = raiz;
+		this.size = size;
+		this.valores = valores;
+	}
+
+	/**
+	 * Compara sin signo los bytes de a con los len bytes de buf a partir de
+	 * la posición off
+	 */
+	private static int compara(byte[] a, ByteBuffer buf, int off, int len) {
+		int n = Math.min(a.length, len);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xFF) - (buf.get(off + i) & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return a.length - len;
+	}
+
+	private static int compara(byte[] a, byte[] b) {
+		return compara(a, ByteBuffer.wrap(b), 0, b.length);
+	}
+
+	/**
+	 * Página de nodo en construcción
+	 */
+	private static class Pagina {
+		private final ArrayList<byte[]> claves = new ArrayList<byte[]>();
+		private final ArrayList<long[]> datos = new ArrayList<long[]>();
+		private final boolean hoja;
+		private int primerHijo;
+		private byte[] primeraClave;
+		private int ocupado = CABECERA_NODO;
+
+		Pagina(boolean hoja) {
+			this.hoja = hoja;
+		}
+
+		/**
+		 * @return true si cabe un registro más con una clave de len bytes
+		 */
+		boolean cabe(int len) {
+			return ocupado + 2 + 2 + len + (hoja ? 12 : 4) <= PAGINA;
+		}
+
+		/**
+		 * Añade un registro: en una hoja, clave con la posición y longitud
+		 * del valor; en un nodo interno, clave con el hijo a su derecha
+		 */
+		void anade(byte[] clave, long a, long b) {
+			claves.add(clave);
+			datos.add(new long[] { a, b });
+			ocupado += 2 + 2 + clave.length + (hoja ? 12 : 4);
+		}
+
+		ByteBuffer escribe() {
+			ByteBuffer buf = ByteBuffer.allocate(PAGINA);
+			buf.put((byte) (hoja ? 1 : 0));
+			buf.put((byte) 0);
+			buf.putShort((short) claves.size());
+			buf.putInt(primerHijo);
+			int registro = CABECERA_NODO + 2 * claves.size();
+			for (int i = 0; i < claves.size(); i++) {
+				buf.putShort(CABECERA_NODO + 2 * i, (short) registro);
+				byte[] clave = claves.get(i);
+				buf.position(registro);
+				buf.putShort((short) clave.length);
+				buf.put(clave);
+				if (hoja) {
+					buf.putLong(datos.get(i)[0]);
+					buf.putInt((int) datos.get(i)[1]);
+				} else
+					buf.putInt((int) datos.get(i)[0]);
+				registro = buf.position();
+			}
+			buf.clear();
+			return buf;
+		}
+	}
+
+	/**
+	 * Construcción de las páginas de nodos de abajo a arriba, como en
+	 * CargaOrdenada en BTree: cada nivel tiene una página abierta, que se
+	 * escribe en cuanto se llena y se cuelga de la del nivel superior. Sólo
+	 * hay en memoria una página por nivel
+	 */
+	private static class Niveles {
+		private final FileChannel out;
+		// Página abierta de cada nivel (null si no hay), empezando por las
+		// hojas, y páginas ya escritas de cada nivel
+		private final ArrayList<Pagina> abiertas = new ArrayList<Pagina>();
+		private final ArrayList<Integer> escritas = new ArrayList<Integer>();
+		// Siguiente página libre del fichero (la 0 es la cabecera)
+		private int siguiente = 1;
+
+		Niveles(FileChannel out) {
+			this.out = out;
+		}
+
+		/**
+		 * Añade al nivel un registro: en las hojas, clave con la posición y
+		 * longitud del valor; en los niveles internos, el hijo a con su
+		 * primera clave
+		 */
+		void anade(int nivel, byte[] clave, long a, long b) throws IOException {
+			if (nivel == abiertas.size()) {
+				abiertas.add(null);
+				escritas.add(0);
+			}
+			Pagina x = abiertas.get(nivel);
+			if (x != null && !x.cabe(clave.length)) {
+				cierra(nivel);
+				x = null;
+			}
+			if (x == null) {
+				x = new Pagina(nivel == 0);
+				x.primeraClave = clave;
+				abiertas.set(nivel, x);
+				if (nivel > 0) {
+					x.primerHijo = (int) a;
+					return;
+				}
+			}
+			x.anade(clave, a, b);
+		}
+
+		/**
+		 * Escribe la página abierta del nivel y la cuelga del nivel superior
+		 */
+		private void cierra(int nivel) throws IOException {
+			Pagina x = abiertas.get(nivel);
+			int pagina = siguiente++;
+			vuelca(out, x.escribe(), (long) pagina * PAGINA);
+			abiertas.set(nivel, null);
+			escritas.set(nivel, escritas.get(nivel) + 1);
+			anade(nivel + 1, x.primeraClave, pagina, 0);
+		}
+
+		/**
+		 * Escribe las páginas abiertas, de las hojas hacia arriba, hasta
+		 * llegar a un nivel con una única página, la raíz
+		 *
+		 * @return número de página de la raíz
+		 */
+		int termina() throws IOException {
+			if (abiertas.isEmpty()) {
+				// Árbol vacío: la raíz es una hoja sin claves
+				abiertas.add(new Pagina(true));
+				escritas.add(0);
+			}
+			for (int nivel = 0;; nivel++)
+				if (nivel == abiertas.size() - 1 && escritas.get(nivel) == 0) {
+					int pagina = siguiente++;
+					vuelca(out, abiertas.get(nivel).escribe(), (long) pagina
+							* PAGINA);
+					return pagina;
+				} else if (abiertas.get(nivel) != null)
+					cierra(nivel);
+		}
+	}
+
+	/**
+	 * Genera en el fichero f la versión de sólo lectura del árbol. Las
+	 * entradas se recorren con el iterador del árbol y las páginas se escriben
+	 * según se llenan (ver Niveles), y los valores van a un fichero temporal
+	 * que al final se copia detrás de las páginas, así que no se guardan en
+	 * memoria ni las entradas ni las páginas
+	 *
+	 * @param tree
+	 *            árbol a compilar
+	 * @param f
+	 *            fichero de salida, se sobrescribe si existe
+	 * @param keyCodec
+	 *            codificación de las claves, debe conservar el orden (el orden
+	 *            de los bytes sin signo debe coincidir con el de las claves)
+	 * @param valueCodec
+	 *            codificación de los valores
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             si la codificación de claves no conserva el orden o alguna
+	 *             clave codificada ocupa más de MAX_CLAVE bytes
+	 */
+	public static <K extends Comparable<K>, V> void compile(BTree<K, V> tree,
+			Path f, BTree.Codec<K> keyCodec, BTree.Codec<V> valueCodec)
+			throws IOException {
+		Path temporal = Files.createTempFile(f.toAbsolutePath().getParent(), f
+				.getFileName().toString(), ".valores");
+		FileChannel out = null, tmp = null;
+		try {
+			tmp = FileChannel.open(temporal, StandardOpenOption.READ,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.DELETE_ON_CLOSE);
+			out = FileChannel.open(f, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+			Niveles niveles = new Niveles(out);
+			// Bytes de valores, escritos en el temporal o en el buffer
+			long pos = 0;
+			ByteBuffer valores = ByteBuffer.allocate(1 << 16);
+			long n = 0;
+			byte[] anterior = null;
+			for (Iterator<Entry<K, V>> iterator = tree.entrySet().iterator(); iterator
+					.hasNext(); n++) {
+				Entry<K, V> e = iterator.next();
+				byte[] clave = keyCodec.encode(e.getKey());
+				if (clave.length > MAX_CLAVE)
+					throw new IllegalArgumentException("Clave demasiado larga: "
+							+ e.getKey());
+				if (anterior != null && compara(anterior, clave) >= 0)
+					throw new IllegalArgumentException(
+							"La codificación de claves no conserva el orden");
+				anterior = clave;
+
+				long valor = -1;
+				int len = -1;
+				if (e.getValue() != null) {
+					byte[] v = valueCodec.encode(e.getValue());
+					valor = pos;
+					len = v.length;
+					if (valores.remaining() < v.length) {
+						valores.flip();
+						vuelca(tmp, valores, pos - valores.remaining());
+						valores.clear();
+					}
+					if (valores.remaining() < v.length)
+						vuelca(tmp, ByteBuffer.wrap(v), pos);
+					else
+						valores.put(v);
+					pos += v.length;
+				}
+				niveles.anade(0, clave, valor, len);
+			}
+			valores.flip();
+			vuelca(tmp, valores, pos - valores.remaining());
+			int raiz = niveles.termina();
+
+			// Valores detrás de la última página
+			long inicio = (long) niveles.siguiente * PAGINA;
+			tmp.position(0);
+			for (long copiado = 0; copiado < pos;)
+				copiado += out.transferFrom(tmp, inicio + copiado, pos
+						- copiado);
+
+			ByteBuffer cabecera = ByteBuffer.allocate(PAGINA);
+			cabecera.putInt(MAGIC);
+			cabecera.putInt(VERSION);
+			cabecera.putInt(PAGINA);
+			cabecera.putInt(raiz);
+			cabecera.putLong(n);
+			cabecera.putLong(inicio + pos);
+			cabecera.putLong(inicio);
+			cabecera.flip();
+			vuelca(out, cabecera, 0);
+		} finally {
+			if (out != null)
+				out.close();
+			if (tmp != null)
+				tmp.close();
+			else
+				Files.deleteIfExists(temporal);
+		}
+	}
+
+	/**
+	 * Escribe en la posición pos lo que queda por leer del buffer b
+	 *
+	 * @return posición siguiente a lo escrito
+	 */
+	private static long vuelca(FileChannel out, ByteBuffer b, long pos)
+			throws IOException {
+		while (b.hasRemaining())
+			pos += out.write(b, pos);
+		return pos;
+	}
+
+	/**
+	 * Abre un fichero generado con compile
+	 *
+	 * @param f
+	 *            fichero a abrir
+	 * @param keyCodec
+	 *            codificación de las claves (la misma usada en compile)
+	 * @param valueCodec
+	 *            codificación de los valores
+	 * @return árbol de sólo lectura sobre el fichero proyectado en memoria
+	 * @throws IOException
+	 *             si el fichero no tiene el formato esperado
+	 */
+	public static <K extends Comparable<K>, V> MappedBTree<K, V> open(Path f,
+			BTree.Codec<K> keyCodec, BTree.Codec<V> valueCodec)
+			throws IOException {
+		FileChannel in = FileChannel.open(f, StandardOpenOption.READ);
+		try {
+			ByteBuffer cabecera = ByteBuffer.allocate(40);
+			while (cabecera.hasRemaining())
+				if (in.read(cabecera, cabecera.position()) < 0)
+					throw new IOException("Fichero incompleto");
+			cabecera.flip();
+			if (cabecera.getInt() != MAGIC)
+				throw new IOException("Formato de fichero no válido");
+			int version = cabecera.getInt();
+			if (version != VERSION)
+				throw new IOException("Versión no soportada: " + version);
+			if (cabecera.getInt() != PAGINA)
+				throw new IOException("Tamaño de página no soportado");
+			int raiz = cabecera.getInt();
+			long size = cabecera.getLong();
+			long longitud = cabecera.getLong();
+			long valores = cabecera.getLong();
+			if (in.size() < longitud)
+				throw new IOException("Fichero incompleto");
+			if (valores < PAGINA || valores > longitud)
+				throw new IOException("Región de valores no válida");
+
+			MappedByteBuffer[] segmentos = new MappedByteBuffer[(int) ((longitud
+					+ SEGMENTO - 1) / SEGMENTO)];
+			for (int i = 0; i < segmentos.length; i++) {
+				long inicio = i * SEGMENTO;
+				segmentos[i] = in.map(FileChannel.MapMode.READ_ONLY, inicio,
+						Math.min(SEGMENTO, longitud - inicio));
+			}
+			return new MappedBTree<K, V>(keyCodec, valueCodec, segmentos, raiz,
+					size, valores);
+		} finally {
+			// La proyección sigue siendo válida al cerrar el canal
+			in.close();
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(Object key) {
+		return busca(key) != null;
+	}
+
+	/**
+	 * Metodo que devuelve el valor asociado a la clave key
+	 *
+	 * Se realiza en O(logn), con búsqueda binaria sobre los bytes de cada
+	 * página del camino. Sólo se decodifica el valor encontrado
+	 *
+	 * @param key
+	 * @return valor asociado a key, null si no existe mapeo para esta clave
+	 * @throws ClassCastException
+	 *             si key no es del tipo de las claves, como en java.util.Map
+	 */
+	public V get(Object key) {
+		long[] valor = busca(key);
+		if (valor == null || valor[1] < 0)
+			return null;
+		byte[] b = new byte[(int) valor[1]];
+		lee(valores + valor[0], b);
+		return valueCodec.decode(b);
+	}
+
+	/**
+	 * @return posición (desde el comienzo de la región de valores) y longitud
+	 *         del valor asociado a key, null si no existe mapeo para esta
+	 *         clave
+	 */
+	@SuppressWarnings("unchecked")
+	private long[] busca(Object key) {
+		if (key == null)
+			return null;
+		byte[] clave = keyCodec.encode((K) key);
+		int pagina = raiz;
+		while (true) {
+			long inicio = (long) pagina * PAGINA;
+			ByteBuffer seg = segmentos[(int) (inicio / SEGMENTO)];
+			int base = (int) (inicio % SEGMENTO);
+			boolean hoja = seg.get(base) == 1;
+			int n = seg.getShort(base + 2) & 0xFFFF;
+
+			// Búsqueda binaria de la última clave <= key
+			int lo = 0, hi = n - 1, pos = -1;
+			boolean igual = false;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int registro = base
+						+ (seg.getShort(base + CABECERA_NODO + 2 * mid) & 0xFFFF);
+				int c = compara(clave, seg, registro + 2,
+						seg.getShort(registro) & 0xFFFF);
+				if (c >= 0) {
+					pos = mid;
+					lo = mid + 1;
+					if (c == 0) {
+						igual = true;
+						break;
+					}
+				} else
+					hi = mid - 1;
+			}
+
+			if (hoja) {
+				if (!igual)
+					return null;
+				int registro = base
+						+ (seg.getShort(base + CABECERA_NODO + 2 * pos) & 0xFFFF);
+				int datos = registro + 2 + (seg.getShort(registro) & 0xFFFF);
+				return new long[] { seg.getLong(datos), seg.getInt(datos + 8) };
+			}
+			if (pos < 0)
+				pagina = seg.getInt(base + 4);
+			else {
+				int registro = base
+						+ (seg.getShort(base + CABECERA_NODO + 2 * pos) & 0xFFFF);
+				pagina = seg.getInt(registro + 2
+						+ (seg.getShort(registro) & 0xFFFF));
+			}
+		}
+	}
+
+	/**
+	 * Copia a b los bytes del fichero a partir de la posición pos, que pueden
+	 * estar repartidos entre dos proyecciones
+	 */
+	private void lee(long pos, byte[] b) {
+		int off = 0;
+		while (off < b.length) {
+			ByteBuffer seg = segmentos[(int) (pos / SEGMENTO)].duplicate();
+			seg.position((int) (pos % SEGMENTO));
+			int n = Math.min(seg.remaining(), b.length - off);
+			seg.get(b, off, n);
+			off += n;
+			pos += n;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package pkg;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ *
+ *         Réplica de un mapa ordenado contra la que se compara un BTree con
+ *         diff (ver enableMerkleHashes en BTree). Basta con que pueda dar el
+ *         hash de Merkle de un rango de claves y las entradas de un rango
+ *         pequeño, por lo que puede ser un BTree del mismo proceso o un
+ *         cliente de una réplica remota.
+ *
+ *         En los rangos, una clave null indica que no hay límite por ese
+ *         lado.
+ *
+ * @param <K>
+ *            tipo de las claves
+ * @param <V>
+ *            tipo de los valores
+ */
+public interface MerkleReplica<K, V> {
+
+	/**
+	 *
+	 * @return hash de Merkle de las entradas con clave en el rango, que debe
+	 *         calcularse como en BTree y con las mismas codificaciones (0 si
+	 *         no hay ninguna)
+	 */
+	long merkleHash(K fromKey, boolean fromInclusive, K toKey,
+			boolean toInclusive);
+
+	/**
+	 *
+	 * @return entradas con clave en el rango, también las de valor null, en
+	 *         orden creciente de clave
+	 */
+	List<Entry<K, V>> rangeEntries(K fromKey, boolean fromInclusive, K toKey,
+			boolean toInclusive);
+}
@@ -0,0 +1,548 @@
+package pkg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *
+ *         Mapa particionado por rangos de clave en varios árboles-B
+ *         independientes (shards). Cada shard tiene su propio cerrojo, por lo
+ *         que las operaciones sobre claves de shards distintos pueden
+ *         ejecutarse en paralelo sin que el árbol-B tenga que ser concurrente.
+ *
+ *         Las operaciones puntuales se dirigen a un único shard, leyendo las
+ *         fronteras entre shards sin bloquearlas (ver bloquea). Las
+ *         operaciones masivas (putAll, recorridos completos) se reparten entre
+ *         los shards en un ForkJoinPool. El rebalanceo mueve las entradas con
+ *         join y splitAt, sin copiarlas.
+ *
+ * @param <K>
+ *            tipo de las claves utilizadas para mapear los valores
+ * @param <V>
+ *            tipo de los valores mapeados
+ */
+public class ShardedBTree<K extends Comparable<K>, V> {
+
+	// Se comprueba si hay que rebalancear cada REVISION inserciones en un
+	// shard
+	private static final int REVISION = 1024;
+	// Un shard está descompensado si tiene más de DESEQUILIBRIO veces la
+	// media de entradas
+	private static final int DESEQUILIBRIO = 2;
+
+	/**
+	 * Shard: su árbol, su cerrojo y su contador de inserciones desde la
+	 * última revisión (ver put), que sólo se toca con el cerrojo en escritura.
+	 * El árbol cambia al rebalancear, con todos los cerrojos tomados
+	 */
+	private final class Shard {
+		private BTree<K, V> arbol;
+		private final ReentrantReadWriteLock cerrojo = new ReentrantReadWriteLock();
+		private int inserciones;
+
+		private Shard(BTree<K, V> arbol) {
+			this.arbol = arbol;
+		}
+	}
+
+	private final int grado;
+	private final ForkJoinPool pool;
+	private final Object[] shards;
+	// Protege las fronteras: las operaciones puntuales las leen de forma
+	// optimista (ver bloquea), las masivas lo toman en lectura, y el
+	// rebalanceo y clear en escritura antes de tomar los cerrojos de todos
+	// los shards
+	private final StampedLock cerrojoFronteras = new StampedLock();
+	// fronteras[i] es la clave más pequeña del shard i+1, el shard i contiene
+	// las claves k tales que fronteras[i-1] <= k < fronteras[i]
+	private Object[] fronteras;
+
+	public ShardedBTree(int grado, int numShards) {
+		this(grado, numShards, null, ForkJoinPool.commonPool());
+	}
+
+	public ShardedBTree(int grado, int numShards,
+			Collection<? extends K> muestra) {
+		this(grado, numShards, muestra, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param grado
+	 *            grado de los árboles-B de cada shard
+	 * @param numShards
+	 *            número de shards
+	 * @param muestra
+	 *            muestra de claves a partir de la que se eligen las fronteras
+	 *            entre shards (por cuantiles). Si es null o no tiene claves
+	 *            suficientes, todas las claves van al primer shard hasta el
+	 *            primer rebalanceo
+	 * @param pool
+	 *            pool en el que se ejecutan las operaciones masivas
+	 */
+	public ShardedBTree(int grado, int numShards,
+			Collection<? extends K> muestra, ForkJoinPool pool) {
+		if (numShards < 1)
+			throw new IllegalArgumentException(
+					"El número de shards debe ser mayor que 0");
+		this.grado = grado;
+		this.pool = pool;
+		this.shards = new Object[numShards];
+		for (int i = 0; i < numShards; i++)
+			shards[i] = new Shard(new BTree<K, V>(grado));
+		if (muestra == null)
+			this.fronteras = new Object[0];
+		else {
+			ArrayList<K> ordenada = new ArrayList<K>(muestra);
+			Collections.sort(ordenada);
+			this.fronteras = cuantiles(ordenada, numShards);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Shard getShard(int pos) {
+		return (ShardedBTree<K, V>.Shard) shards[pos];
+	}
+
+	/**
+	 * Elige como fronteras las claves que dividen la lista ordenada de claves
+	 * en n partes iguales. Las claves repetidas se descartan, por lo que
+	 * pueden salir menos de n-1 fronteras
+	 */
+	private static <K extends Comparable<K>> Object[] cuantiles(
+			ArrayList<K> ordenadas, int n) {
+		ArrayList<K> r = new ArrayList<K>(n - 1);
+		for (int i = 1; i < n; i++) {
+			int pos = (int) ((long) i * ordenadas.size() / n);
+			if (pos == 0 || pos >= ordenadas.size())
+				continue;
+			K k = ordenadas.get(pos);
+			if (r.isEmpty() || r.get(r.size() - 1).compareTo(k) < 0)
+				r.add(k);
+		}
+		return r.toArray();
+	}
+
+	/**
+	 *
+	 * @return índice del shard al que pertenece la clave key
+	 */
+	private int shard(Object key) {
+		int pos = Arrays.binarySearch(fronteras, key);
+		return pos >= 0 ? pos + 1 : -(pos + 1);
+	}
+
+	/**
+	 * Bloquea, en lectura o en escritura, el shard al que pertenece key. Las
+	 * fronteras se leen sin bloquear su cerrojo, y el sello se valida ya con
+	 * el shard bloqueado: si es válido, un rebalanceo posterior tendrá que
+	 * esperar a que se libere el shard para mover entradas. Si no, se repite
+	 * con el cerrojo de las fronteras en lectura
+	 *
+	 * @return shard bloqueado
+	 */
+	private Shard bloquea(Object key, boolean escritura) {
+		long sello = cerrojoFronteras.tryOptimisticRead();
+		if (sello != 0) {
+			Shard s = getShard(shard(key));
+			Lock l = escritura ? s.cerrojo.writeLock() : s.cerrojo.readLock();
+			l.lock();
+			if (cerrojoFronteras.validate(sello))
+				return s;
+			l.unlock();
+		}
+		sello = cerrojoFronteras.readLock();
+		try {
+			Shard s = getShard(shard(key));
+			(escritura ? s.cerrojo.writeLock() : s.cerrojo.readLock()).lock();
+			return s;
+		} finally {
+			cerrojoFronteras.unlockRead(sello);
+		}
+	}
+
+	/**
+	 * Toma el cerrojo de las fronteras y los de todos los shards en
+	 * escritura
+	 *
+	 * @return sello para desbloqueaTodo
+	 */
+	private long bloqueaTodo() {
+		long sello = cerrojoFronteras.writeLock();
+		for (int i = 0; i < shards.length; i++)
+			getShard(i).cerrojo.writeLock().lock();
+		return sello;
+	}
+
+	private void desbloqueaTodo(long sello) {
+		for (int i = shards.length - 1; i >= 0; i--)
+			getShard(i).cerrojo.writeLock().unlock();
+		cerrojoFronteras.unlockWrite(sello);
+	}
+
+	public V get(Object key) {
+		if (key == null)
+			return null;
+		Shard s = bloquea(key, false);
+		try {
+			return s.arbol.get(key);
+		} finally {
+			s.cerrojo.readLock().unlock();
+		}
+	}
+
+	public boolean containsKey(Object key) {
+		if (key == null)
+			return false;
+		Shard s = bloquea(key, false);
+		try {
+			return s.arbol.containsKey(key);
+		} finally {
+			s.cerrojo.readLock().unlock();
+		}
+	}
+
+	public V put(K key, V value) {
+		if (key == null)
+			throw new NullPointerException("La clave no puede ser null");
+		V r;
+		boolean revisa = false;
+		Shard s = bloquea(key, true);
+		try {
+			r = s.arbol.put(key, value);
+			if (r == null && ++s.inserciones == REVISION) {
+				s.inserciones = 0;
+				revisa = true;
+			}
+		} finally {
+			s.cerrojo.writeLock().unlock();
+		}
+		if (revisa)
+			rebalanceSiDescompensado();
+		return r;
+	}
+
+	public V remove(Object key) {
+		if (key == null)
+			return null;
+		Shard s = bloquea(key, true);
+		try {
+			return s.arbol.remove(key);
+		} finally {
+			s.cerrojo.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		int r = 0;
+		for (int n : shardSizes())
+			r += n;
+		return r;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public void clear() {
+		long sello = bloqueaTodo();
+		try {
+			for (int i = 0; i < shards.length; i++) {
+				getShard(i).arbol.clear();
+				getShard(i).inserciones = 0;
+			}
+		} finally {
+			desbloqueaTodo(sello);
+		}
+	}
+
+	/**
+	 *
+	 * @return número de entradas de cada shard, sin que un rebalanceo las
+	 *         mueva mientras se cuentan
+	 */
+	public int[] shardSizes() {
+		long sello = cerrojoFronteras.tryOptimisticRead();
+		if (sello != 0) {
+			int[] r = cuentaShards();
+			if (cerrojoFronteras.validate(sello))
+				return r;
+		}
+		sello = cerrojoFronteras.readLock();
+		try {
+			return cuentaShards();
+		} finally {
+			cerrojoFronteras.unlockRead(sello);
+		}
+	}
+
+	private int[] cuentaShards() {
+		int[] r = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			Shard s = getShard(i);
+			s.cerrojo.readLock().lock();
+			try {
+				r[i] = s.arbol.size();
+			} finally {
+				s.cerrojo.readLock().unlock();
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Inserta todos los elementos del mapa m. Las entradas se agrupan por
+	 * shard y cada grupo se inserta en paralelo
+	 *
+	 * @param m
+	 */
+	public void putAll(Map<? extends K, ? extends V> m) {
+		long sello = cerrojoFronteras.readLock();
+		try {
+			final ArrayList<ArrayList<Entry<? extends K, ? extends V>>> grupos = new ArrayList<ArrayList<Entry<? extends K, ? extends V>>>(
+					shards.length);
+			for (int i = 0; i < shards.length; i++)
+				grupos.add(new ArrayList<Entry<? extends K, ? extends V>>());
+			for (Iterator<? extends Entry<? extends K, ? extends V>> iterator = m
+					.entrySet().iterator(); iterator.hasNext();) {
+				Entry<? extends K, ? extends V> entry = iterator.next();
+				if (entry.getKey() == null)
+					throw new NullPointerException(
+							"La clave no puede ser null");
+				grupos.get(shard(entry.getKey())).add(entry);
+			}
+
+			ArrayList<RecursiveAction> tareas = new ArrayList<RecursiveAction>(
+					shards.length);
+			for (int i = 0; i < shards.length; i++) {
+				if (grupos.get(i).isEmpty())
+					continue;
+				final Shard s = getShard(i);
+				final ArrayList<Entry<? extends K, ? extends V>> grupo = grupos
+						.get(i);
+				tareas.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						s.cerrojo.writeLock().lock();
+						try {
+							for (Iterator<Entry<? extends K, ? extends V>> iterator = grupo
+									.iterator(); iterator.hasNext();) {
+								Entry<? extends K, ? extends V> entry = iterator
+										.next();
+								s.arbol.put(entry.getKey(), entry.getValue());
+							}
+						} finally {
+							s.cerrojo.writeLock().unlock();
+						}
+					}
+				});
+			}
+			ejecuta(tareas);
+		} finally {
+			cerrojoFronteras.unlockRead(sello);
+		}
+		rebalanceSiDescompensado();
+	}
+
+	/**
+	 *
+	 * @return ArrayList con las claves en orden creciente. Cada shard se
+	 *         recorre en paralelo
+	 */
+	public ArrayList<K> inOrderKey() {
+		ArrayList<Entry<K, V>> entradas = inOrderEntry();
+		ArrayList<K> r = new ArrayList<K>(entradas.size());
+		for (Iterator<Entry<K, V>> iterator = entradas.iterator(); iterator
+				.hasNext();)
+			r.add(iterator.next().getKey());
+		return r;
+	}
+
+	/**
+	 *
+	 * @return ArrayList con las entradas en orden creciente de clave. Cada
+	 *         shard se recorre en paralelo
+	 */
+	public ArrayList<Entry<K, V>> inOrderEntry() {
+		long sello = cerrojoFronteras.readLock();
+		try {
+			return recorre();
+		} finally {
+			cerrojoFronteras.unlockRead(sello);
+		}
+	}
+
+	/**
+	 * Recorre en paralelo todos los shards. Los shards están ordenados por
+	 * rango, por lo que basta con concatenar sus recorridos
+	 */
+	private ArrayList<Entry<K, V>> recorre() {
+		final ArrayList<ArrayList<Entry<K, V>>> parciales = new ArrayList<ArrayList<Entry<K, V>>>(
+				Collections.<ArrayList<Entry<K, V>>> nCopies(shards.length,
+						null));
+		ArrayList<RecursiveAction> tareas = new ArrayList<RecursiveAction>(
+				shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			final int s = i;
+			tareas.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					Shard shard = getShard(s);
+					shard.cerrojo.readLock().lock();
+					try {
+						parciales.set(s, shard.arbol.inOrderEntry());
+					} finally {
+						shard.cerrojo.readLock().unlock();
+					}
+				}
+			});
+		}
+		ejecuta(tareas);
+		int n = 0;
+		for (int i = 0; i < shards.length; i++)
+			n += parciales.get(i).size();
+		ArrayList<Entry<K, V>> r = new ArrayList<Entry<K, V>>(n);
+		for (int i = 0; i < shards.length; i++)
+			r.addAll(parciales.get(i));
+		return r;
+	}
+
+	/**
+	 * Recalcula las fronteras de forma que cada shard quede con el mismo
+	 * número de entradas (más o menos una), y las mueve uniendo todos los
+	 * shards con join y volviendo a separarlos por las nuevas fronteras con
+	 * splitAt. Las fronteras se eligen por posición con entradaEn, así que no
+	 * se recorre ni se copia ninguna entrada
+	 *
+	 * Se realiza en O(s log n), siendo s el número de shards
+	 */
+	public void rebalance() {
+		long sello = bloqueaTodo();
+		try {
+			long total = 0;
+			for (int i = 0; i < shards.length; i++)
+				total += getShard(i).arbol.size();
+			// La frontera i-1 es la clave en la posición i*total/s del
+			// recorrido de todos los shards, que está en el shard actual a
+			// partir de las antes entradas de los anteriores
+			ArrayList<K> nuevas = new ArrayList<K>(shards.length - 1);
+			int actual = 0;
+			long antes = 0, anterior = 0;
+			for (int i = 1; i < shards.length; i++) {
+				long pos = i * total / shards.length;
+				if (pos == anterior)
+					continue;
+				anterior = pos;
+				while (antes + getShard(actual).arbol.size() <= pos)
+					antes += getShard(actual++).arbol.size();
+				nuevas.add(getShard(actual).arbol.entradaEn((int) (pos - antes))
+						.getKey());
+			}
+
+			BTree<K, V> todo = getShard(0).arbol;
+			for (int i = 1; i < shards.length; i++)
+				todo = BTree.join(todo, getShard(i).arbol);
+			for (int i = 0; i < shards.length; i++) {
+				Shard s = getShard(i);
+				if (i < nuevas.size()) {
+					BTree<K, V>[] partes = todo.splitAt(nuevas.get(i));
+					s.arbol = partes[0];
+					todo = partes[1];
+				} else if (i == nuevas.size())
+					s.arbol = todo;
+				else
+					s.arbol = new BTree<K, V>(grado);
+				s.inserciones = 0;
+			}
+			fronteras = nuevas.toArray();
+		} finally {
+			desbloqueaTodo(sello);
+		}
+	}
+
+	/**
+	 * Rebalancea si algún shard tiene más de DESEQUILIBRIO veces la media de
+	 * entradas
+	 */
+	private void rebalanceSiDescompensado() {
+		int[] tamanos = shardSizes();
+		long total = 0;
+		int max = 0;
+		for (int i = 0; i < tamanos.length; i++) {
+			total += tamanos[i];
+			max = Math.max(max, tamanos[i]);
+		}
+		if (shards.length > 1 && max > REVISION
+				&& max > DESEQUILIBRIO * total / shards.length)
+			rebalance();
+	}
+
+	/**
+	 * Comprueba la estructura de cada shard (ver checkInvariants en BTree) y
+	 * que sus claves estén entre sus fronteras
+	 *
+	 * @throws AssertionError
+	 *             con el primer fallo encontrado
+	 */
+	@SuppressWarnings("unchecked")
+	public void checkInvariants() {
+		long sello = cerrojoFronteras.readLock();
+		try {
+			for (int i = 0; i < shards.length; i++) {
+				Shard s = getShard(i);
+				s.cerrojo.readLock().lock();
+				try {
+					s.arbol.checkInvariants();
+					if (s.arbol.isEmpty())
+						continue;
+					if (i > 0 && i <= fronteras.length
+							&& s.arbol.firstKey().compareTo(
+									(K) fronteras[i - 1]) < 0)
+						throw new AssertionError("Clave "
+								+ s.arbol.firstKey() + " antes de la frontera "
+								+ fronteras[i - 1] + " del shard " + i);
+					if (i < fronteras.length
+							&& s.arbol.lastKey().compareTo((K) fronteras[i]) >= 0)
+						throw new AssertionError("Clave " + s.arbol.lastKey()
+								+ " tras la frontera " + fronteras[i]
+								+ " del shard " + i);
+					if (i > fronteras.length)
+						throw new AssertionError("Entradas en el shard " + i
+								+ ", sin frontera");
+				} finally {
+					s.cerrojo.readLock().unlock();
+				}
+			}
+		} finally {
+			cerrojoFronteras.unlockRead(sello);
+		}
+	}
+
+	private void ejecuta(final Collection<RecursiveAction> tareas) {
+		if (ForkJoinTask.inForkJoinPool())
+			ForkJoinTask.invokeAll(tareas);
+		else
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					ForkJoinTask.invokeAll(tareas);
+				}
+			});
+	}
+}
@@ -0,0 +1,107 @@
+package pkg;
+
+import java.util.Arrays;
+
+/**
+ *
+ *         Informe de ocupación de memoria de un BTree (ver footprint en
+ *         BTree): número de nodos, altura, histograma de ocupación de los nodos
+ *         y una estimación de los bytes que ocupa la estructura.
+ *
+ *         Los bytes se estiman para una JVM de 64 bits con referencias
+ *         comprimidas, y no incluyen las claves ni los valores, que son de los
+ *         usuarios del árbol.
+ */
+public class TreeFootprint {
+
+	// Intervalos del histograma de ocupación
+	static final int INTERVALOS = 10;
+
+	private final int grado;
+	private final int altura;
+	private final int nodos;
+	private final int hojas;
+	private final long entradas;
+	private final long mensajes;
+	private final long bytes;
+	private final int[] histograma;
+
+	TreeFootprint(int grado, int altura, int nodos, int hojas, long entradas,
+			long mensajes, long bytes, int[] histograma) {
+		this.grado = grado;
+		this.altura = altura;
+		this.nodos = nodos;
+		this.hojas = hojas;
+		this.entradas = entradas;
+		this.mensajes = mensajes;
+		this.bytes = bytes;
+		this.histograma = histograma;
+	}
+
+	/**
+	 *
+	 * @return altura del árbol en niveles (1 si sólo tiene la raíz, 0 si no
+	 *         tiene nodos)
+	 */
+	public int height() {
+		return altura;
+	}
+
+	public int nodes() {
+		return nodos;
+	}
+
+	public int leaves() {
+		return hojas;
+	}
+
+	public long entries() {
+		return entradas;
+	}
+
+	/**
+	 *
+	 * @return mensajes pendientes en los buffers del modo buffer
+	 */
+	public long pendingMessages() {
+		return mensajes;
+	}
+
+	/**
+	 *
+	 * @return estimación de los bytes que ocupan los nodos, sus arrays, las
+	 *         entradas y los mensajes pendientes
+	 */
+	public long estimatedBytes() {
+		return bytes;
+	}
+
+	public double bytesPerEntry() {
+		return entradas == 0 ? 0 : (double) bytes / entradas;
+	}
+
+	/**
+	 *
+	 * @return proporción de huecos de clave ocupados, entre 0 y 1
+	 */
+	public double fillFactor() {
+		return nodos == 0 ? 0 : (double) entradas / ((long) nodos * (2 * grado - 1));
+	}
+
+	/**
+	 *
+	 * @return histograma de ocupación: en la posición i, el número de nodos
+	 *         con entre i/10 y (i+1)/10 de sus 2t-1 huecos ocupados (los nodos
+	 *         llenos cuentan en la última)
+	 */
+	public int[] fillHistogram() {
+		return histograma.clone();
+	}
+
+	public String toString() {
+		return "altura=" + altura + " nodos=" + nodos + " hojas=" + hojas
+				+ " entradas=" + entradas + " ocupacion=" + fillFactor()
+				+ " bytes=" + bytes + " bytesPorEntrada=" + bytesPerEntry()
+				+ " histograma=" + Arrays.toString(histograma);
+	}
+}